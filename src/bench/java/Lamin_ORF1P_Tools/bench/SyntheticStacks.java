@@ -0,0 +1,135 @@
+package Lamin_ORF1P_Tools.bench;
+
+import Lamin_ORF1P_Tools.NucleusTable;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.Random;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+
+
+/**
+ * Synthetic anisotropic stacks looking like the Lamin_ORF1P images:
+ * ellipsoid nuclei (flattened along z as with a coarser z step), a lamin rim at their border,
+ * an ORF1P cytoplasm shell around them, background and noise
+ * Stacks are reproducible for a given seed
+ * @author phm
+ */
+public class SyntheticStacks {
+    
+    public final Calibration cal = new Calibration();
+    public ImagePlus labels, orf1p, lamin, cyto;
+    
+    
+    /**
+     * @param width, height, depth stack size in pixels
+     * @param nbNuclei number of nuclei
+     * @param radiusXY nucleus radius in XY (pixels), the z radius follows the calibration anisotropy
+     */
+    public SyntheticStacks(int width, int height, int depth, int nbNuclei, double radiusXY, double calXY, double calZ, long seed) {
+        cal.pixelWidth = cal.pixelHeight = calXY;
+        cal.pixelDepth = calZ;
+        cal.setUnit("microns");
+        double radiusZ = radiusXY*calXY/calZ;
+        double cytoFactor = 1.8;
+        
+        short[][] lab = new short[depth][width*height];
+        short[][] orf = new short[depth][width*height];
+        short[][] lam = new short[depth][width*height];
+        byte[][] cyt = new byte[depth][width*height];
+        
+        // Nuclei centers, cytoplasm shells are drawn first so that nuclei overwrite them
+        Random random = new Random(seed);
+        double[][] centers = new double[nbNuclei][];
+        for (int n = 0; n < nbNuclei; n++)
+            centers[n] = new double[] {random.nextDouble()*width, random.nextDouble()*height, depth/2.0 + (random.nextDouble() - 0.5)*depth/3};
+        for (double[] c : centers)
+            fill(c, radiusXY*cytoFactor, radiusZ*cytoFactor, width, height, depth, (i, z, d) -> {
+                orf[z][i] = 800;
+                cyt[z][i] = (byte) 255;
+            });
+        for (int n = 0; n < nbNuclei; n++) {
+            short label = (short) (n + 1);
+            fill(centers[n], radiusXY, radiusZ, width, height, depth, (i, z, d) -> {
+                lab[z][i] = label;
+                orf[z][i] = 300;
+                cyt[z][i] = 0;
+                lam[z][i] = (short) (d > 0.8 ? 1500 : 200);
+            });
+        }
+        
+        // Background and noise
+        for (int z = 0; z < depth; z++)
+            for (int i = 0; i < width*height; i++) {
+                orf[z][i] += 100 + (short) (random.nextGaussian()*20);
+                lam[z][i] += 80 + (short) (random.nextGaussian()*15);
+            }
+        
+        ImageStack labStack = new ImageStack(width, height), orfStack = new ImageStack(width, height);
+        ImageStack lamStack = new ImageStack(width, height), cytStack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            labStack.addSlice(new ShortProcessor(width, height, lab[z], null));
+            orfStack.addSlice(new ShortProcessor(width, height, orf[z], null));
+            lamStack.addSlice(new ShortProcessor(width, height, lam[z], null));
+            cytStack.addSlice(new ByteProcessor(width, height, cyt[z], null));
+        }
+        labels = image("labels", labStack, depth);
+        orf1p = image("ORF1P", orfStack, depth);
+        lamin = image("Lamin", lamStack, depth);
+        cyto = image("cyto", cytStack, depth);
+    }
+    
+    
+    private ImagePlus image(String title, ImageStack stack, int depth) {
+        ImagePlus imp = new ImagePlus(title, stack);
+        imp.setDimensions(1, depth, 1);
+        imp.setCalibration(cal);
+        return imp;
+    }
+    
+    
+    private interface VoxelSetter {
+        void set(int index, int z, double distance);
+    }
+    
+    
+    /**
+     * Call setter on each voxel of the ellipsoid, with its normalized distance to the center
+     */
+    private static void fill(double[] c, double rxy, double rz, int width, int height, int depth, VoxelSetter setter) {
+        int x0 = Math.max(0, (int) (c[0] - rxy)), x1 = Math.min(width - 1, (int) (c[0] + rxy));
+        int y0 = Math.max(0, (int) (c[1] - rxy)), y1 = Math.min(height - 1, (int) (c[1] + rxy));
+        int z0 = Math.max(0, (int) (c[2] - rz)), z1 = Math.min(depth - 1, (int) (c[2] + rz));
+        for (int z = z0; z <= z1; z++)
+            for (int y = y0; y <= y1; y++)
+                for (int x = x0; x <= x1; x++) {
+                    double dx = (x - c[0])/rxy, dy = (y - c[1])/rxy, dz = (z - c[2])/rz;
+                    double d = Math.sqrt(dx*dx + dy*dy + dz*dz);
+                    if (d <= 1)
+                        setter.set(y*width + x, z, d);
+                }
+    }
+    
+    
+    /**
+     * Population of the nuclei labels
+     */
+    public Objects3DIntPopulation population() {
+        return new Objects3DIntPopulation(ImageHandler.wrap(labels));
+    }
+    
+    
+    /**
+     * Nuclei as returned by Tools.cellposeDetection
+     */
+    public NucleusTable nuclei() {
+        ArrayList<Object3DInt> objects = new ArrayList<>(population().getObjects3DInt());
+        objects.sort((o1, o2) -> Float.compare(o1.getLabel(), o2.getLabel()));
+        return new NucleusTable(objects);
+    }
+}
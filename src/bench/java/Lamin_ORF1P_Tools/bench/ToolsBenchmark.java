@@ -0,0 +1,134 @@
+package Lamin_ORF1P_Tools.bench;
+
+import Lamin_ORF1P_Tools.LabelScanner;
+import Lamin_ORF1P_Tools.NucleusTable;
+import Lamin_ORF1P_Tools.Tools;
+import ij.ImagePlus;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Benchmarks of Tools methods on synthetic stacks, each one in isolation
+ * Run with mvn -Pbenchmark verify, allocation rates are given by the gc profiler
+ * @author phm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+public class ToolsBenchmark {
+    
+    @Param({"512"})
+    public int width;
+    @Param({"25"})
+    public int depth;
+    @Param({"50"})
+    public int nbNuclei;
+    @Param({"20"})
+    public double radiusXY;
+    @Param({"0.1"})
+    public double calXY;
+    @Param({"0.3"})
+    public double calZ;
+    
+    private Tools tools;
+    private SyntheticStacks stacks;
+    private NucleusTable nuclei;
+    private ImagePlus labels;
+    private File outDir;
+    
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        stacks = new SyntheticStacks(width, width, depth, nbNuclei, radiusXY, calXY, calZ, 42);
+        tools = new Tools();
+        tools.cal = stacks.cal;
+        tools.pixVol = (float) (calXY*calXY*calZ);
+        tools.gaussianBackend = "CPU";
+        tools.minNucVol = 0;
+        tools.maxNucVol = Double.MAX_VALUE;
+        nuclei = stacks.nuclei();
+        outDir = Files.createTempDirectory("lamin_orf1p_bench").toFile();
+    }
+    
+    
+    @Setup(Level.Invocation)
+    public void setupLabels() {
+        labels = stacks.labels.duplicate();
+    }
+    
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = outDir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        outDir.delete();
+    }
+    
+    
+    /**
+     * Nuclei measurements, with channel statistics already computed as when images are loaded
+     */
+    @Benchmark
+    public void tagCells(Blackhole bh) {
+        bh.consume(tools.tagCells(stacks.orf1p, stacks.lamin, stacks.cyto, nuclei));
+    }
+    
+    
+    @Benchmark
+    public void computeCytoParameters(Blackhole bh) {
+        bh.consume(tools.computeCytoParameters(stacks.cyto, stacks.orf1p));
+    }
+    
+    
+    /**
+     * Background on a new image each time, so that channel statistics are computed again
+     * (the image shares the stack and is not flushed)
+     */
+    @Benchmark
+    public void findBackground(Blackhole bh) {
+        ImagePlus img = new ImagePlus("ORF1P", stacks.orf1p.getStack());
+        bh.consume(tools.findBackground(img));
+    }
+    
+    
+    @Benchmark
+    public void findCellsCyto(Blackhole bh) {
+        ImagePlus imgCyto = tools.findCellsCyto(stacks.orf1p, nuclei);
+        bh.consume(imgCyto);
+        tools.flush_close(imgCyto);
+    }
+    
+    
+    /**
+     * Remove nuclei cut by the stack borders (less than half a full nucleus volume) from the labels,
+     * as done on Cellpose labels before building objects
+     */
+    @Benchmark
+    public void filterLabels(Blackhole bh) {
+        double r = radiusXY*calXY;
+        LabelScanner scanner = new LabelScanner(labels);
+        bh.consume(scanner.filter(true, 2.0/3*Math.PI*r*r*r, Double.MAX_VALUE, calXY*calXY*calZ));
+    }
+    
+    
+    @Benchmark
+    public void drawResults() throws Exception {
+        tools.drawResults(nuclei, stacks.cyto, stacks.orf1p, "bench", outDir.getPath() + File.separator);
+    }
+}
@@ -1,27 +1,33 @@
 import Lamin_ORF1P_Tools.Tools;
-import Lamin_ORF1P_Tools.Nucleus;
+import Lamin_ORF1P_Tools.BatchExecutor;
+import Lamin_ORF1P_Tools.ImageResults;
+import Lamin_ORF1P_Tools.ImagePipeline;
+import Lamin_ORF1P_Tools.MetricsEndpoint;
+import Lamin_ORF1P_Tools.NucleusTable;
+import Lamin_ORF1P_Tools.OverlayWriter;
+import Lamin_ORF1P_Tools.RunReport;
+import Lamin_ORF1P_Tools.TiledAnalyzer;
+import Lamin_ORF1P_Tools.ZRange;
+import Lamin_ORF1P_Tools.Cellpose.CellposeWorker;
+import Lamin_ORF1P_Tools.Results.BatchManifest;
+import Lamin_ORF1P_Tools.Results.ResultsSink;
 import ij.IJ;
 import ij.ImagePlus;
-import java.io.BufferedWriter;
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.HashMap;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
-import loci.common.services.ServiceFactory;
 import loci.formats.FormatException;
 import loci.formats.meta.IMetadata;
-import loci.formats.services.OMEXMLService;
-import loci.plugins.BF;
 import loci.plugins.util.ImageProcessorReader;
 import ij.plugin.PlugIn;
-import java.io.FileWriter;
 import java.util.ArrayList;
-import loci.plugins.in.ImporterOptions;
+import java.util.List;
 import org.apache.commons.io.FilenameUtils;
 import org.scijava.util.ArrayUtils;
 
@@ -34,11 +40,11 @@ import org.scijava.util.ArrayUtils;
  */
 public class Lamin_ORF1P implements PlugIn {
     
-    Tools tools = new Tools();
+    public Tools tools = new Tools();
     private String imageDir = "";
     public  String outDirResults = "";
-    public  String rootName = "";
-    public BufferedWriter results, globalResults;
+    private ResultsSink resultsSink;
+    private OverlayWriter overlayWriter;
     
     public void run(String arg) {
         try {
@@ -65,31 +71,9 @@ public class Lamin_ORF1P implements PlugIn {
                 outDir.mkdir();
             }
             
-            // Write header for nuclei parameters file
-            String header = "Image name\tNucleus ID\tNucleus volume (µm3)\tNucleus compactness\tNucleus sphericity\tNucleus elongation\t"
-                    + "Nucleus flatness\tNucleus bg corr. total intensity in lamin channel\tNucleus bg corr. total intensity in ORF1P channel\n";
-            FileWriter fwResults = new FileWriter(outDirResults + "detailed_results.xls", false);
-            results = new BufferedWriter(fwResults);
-            results.write(header);
-            results.flush();
-            
-            // Write header for global nuclei parameters file
-            header = "Image name\tNb nuclei\tNuclei total volume (µm3)\tLamin background\tNuclei bg corr. total intensity in lamin channel\t"
-                    + "ORF1P background\tNuclei bg corr. total intensity in ORF1P channel\t"
-                    + "ORF1P cytoplasm total volume (µm3)\tORF1P cytoplasm bg corr. total intensity\n";
-            FileWriter fwGlobalResults = new FileWriter(outDirResults + "global_results.xls", false);
-            globalResults = new BufferedWriter(fwGlobalResults);
-            globalResults.write(header);
-            globalResults.flush();
-            
             // Create OME-XML metadata store of the latest schema version
-            ServiceFactory factory;
-            factory = new ServiceFactory();
-            OMEXMLService service = factory.getInstance(OMEXMLService.class);
-            IMetadata meta = service.createOMEXMLMetadata();
-            ImageProcessorReader reader = new ImageProcessorReader();
-            reader.setMetadataStore(meta);
-            reader.setId(imageFile.get(0));
+            ImageProcessorReader reader = tools.createReader(imageFile.get(0));
+            IMetadata meta = (IMetadata) reader.getMetadataStore();
             
             // Find image calibration
             tools.cal = tools.findImageCalib(meta);
@@ -99,86 +83,293 @@ public class Lamin_ORF1P implements PlugIn {
 
             // Channels dialog
             String[] chs = tools.dialog(channels);
+            reader.close();
             if (chs == null) {
                 IJ.showStatus("Plugin canceled");
                 return;
             }
             
-            for (String f : imageFile) {
-                rootName = FilenameUtils.getBaseName(f);
-                System.out.println("--- ANALYZING IMAGE " + rootName + " ------");
-                reader.setId(f);
-                
-                ImporterOptions options = new ImporterOptions();
-                options.setId(f);
-                options.setSplitChannels(true);
-                options.setQuiet(true);
-                options.setCrop(true);
-                options.setColorMode(ImporterOptions.COLOR_MODE_GRAYSCALE);
-
-                // Open DAPI channel
-                System.out.println("- Analyzing " + chs[0] + " nuclei channel -");
-                int indexCh = ArrayUtils.indexOf(channels, chs[0]);
-                ImagePlus imgNucleus = BF.openImagePlus(options)[indexCh];
-                
-                // Find DAPI nuclei
-                System.out.println("Finding nuclei....");
-                ArrayList<Nucleus> nuclei = tools.cellposeDetection(imgNucleus, true, "cyto2", 100, 0.5, true);
-                System.out.println(nuclei.size() + " " + chs[0] + " nuclei found");
-                tools.flush_close(imgNucleus);
-                
-                // Open ORF1P channel
-                System.out.println("- Analyzing " + chs[2] + " ORF1P channel -");
-                indexCh = ArrayUtils.indexOf(channels, chs[2]);
-                ImagePlus imgORF1P = BF.openImagePlus(options)[indexCh];
-                
-                // Threshold cytoplasm
-                System.out.println("Finding cytoplasm....");
-                ImagePlus imgCyto = tools.findCellsCyto(imgORF1P, nuclei);
-                
-                // Open Lamin channel (if provided)
-                ImagePlus imgLamin = null;
-                if (!chs[1].equals("None")) {
-                    System.out.println("- Analyzing " + chs[1] + " lamin channel -");
-                    indexCh = ArrayUtils.indexOf(channels, chs[1]);
-                    imgLamin = BF.openImagePlus(options)[indexCh];
-                }
-               
-                // Tag nuclei with parameters
-                System.out.println("- Measuring cells parameters -");
-                HashMap<String, Double> globalParams = tools.tagCells(imgORF1P, imgLamin, imgCyto, nuclei);
-                
-                // Draw results image
-                System.out.println("- Saving results -");
-                tools.drawResults(nuclei, imgCyto, imgORF1P, rootName, outDirResults);
-                             
-                // Write nuclei parameters results
-                for (Nucleus nucleus: nuclei) {
-                    HashMap<String, Double> params = nucleus.params;
-                    results.write(rootName+"\t"+params.get("nucIndex")+"\t"+params.get("nucVol")+"\t"+params.get("nucComp")+
-                            "\t"+params.get("nucSph")+"\t"+params.get("nucEllElong")+"\t"+params.get("nucEllFlat")+
-                            "\t"+params.get("nucLaminInt")+"\t"+params.get("nucORF1PInt")+"\n");
-                    results.flush();
-                }
-                
-                // Write global parameters results
-                globalResults.write(rootName+"\t"+globalParams.get("nucNb").intValue()+"\t"+globalParams.get("nucVol")+"\t"+globalParams.get("bgLamin")+
-                        "\t"+globalParams.get("nucLaminIntSum")+"\t"+globalParams.get("bgORF1P")+"\t"+globalParams.get("nucORF1PIntSum")+"\t"+globalParams.get("cytoORF1PVol")+"\t"+globalParams.get("cytoORF1PInt")+"\n");
-                globalResults.flush();
-                
-                if (imgLamin != null)
-                    tools.flush_close(imgLamin);
-                tools.flush_close(imgORF1P);
-                tools.flush_close(imgCyto);
-            }            
-            results.close();
-            globalResults.close();
-        } catch (IOException | DependencyException | ServiceException | FormatException  ex) {
+            analyzeImages(imageFile, channels, chs, outDirResults);
+        } catch (IOException | DependencyException | ServiceException | FormatException | InterruptedException ex) {
             Logger.getLogger(Lamin_ORF1P.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            CellposeWorker.shutdownAll();
         }
         
         System.out.println("--- All done! ---");
     }
-}
+    
+    
+    /**
+     * Analyze images with the parameters set in tools and write results in outDirResults,
+     * skipping the images already analyzed there with the same settings
+     */
+    public void analyzeImages(List<String> imageFile, String[] channels, String[] chs, String outDirResults) throws IOException, InterruptedException {
+        this.outDirResults = outDirResults;
+        
+        // Skip images already analyzed with the same settings, keep their results and append the new ones
+        BatchManifest manifest = new BatchManifest(outDirResults, tools.settingsHash(chs));
+        ArrayList<String> pendingFiles = manifest.pending(imageFile);
+        System.out.println((imageFile.size() - pendingFiles.size()) + " images already analyzed, " + pendingFiles.size() + " to analyze");
+        resultsSink = tools.createResultsSink(outDirResults, manifest);
+        
+        // Timing and resources of each stage, written in run_report.json and optionally served live
+        tools.report = new RunReport(tools.runReport);
+        MetricsEndpoint metrics = null;
+        if (tools.runReport && tools.metricsPort > 0) {
+            metrics = new MetricsEndpoint(tools.metricsPort);
+            tools.report.addListener(metrics);
+        }
+        overlayWriter = new OverlayWriter(tools, tools.nbParallelImages);
+        if (tools.tileSize > 0) {
+            // Analyze large fields one at a time, tile by tile
+            TiledAnalyzer tiled = new TiledAnalyzer(tools, overlayWriter);
+            for (String f : pendingFiles) {
+                try {
+                    writeResults(tiled.analyze(f, channels, chs, outDirResults));
+                } catch (IOException | InterruptedException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new IOException("Cannot analyze " + f + ": " + ex.getMessage(), ex);
+                }
+            }
+        } else if ((!tools.cellPoseWorker || !tools.cellPoseGpu) && tools.cellPoseBatchSize > 1) {
+            // Without the Cellpose worker, segment nuclei of several images with one Cellpose call,
+            // on CPU share them between the Cellpose processes, then analyze them
+            for (int i = 0; i < pendingFiles.size(); ) {
+                List<String> files = nextChunk(pendingFiles, i);
+                analyzeChunk(files, channels, chs);
+                i += files.size();
+            }
+        } else
+            analyzeFiles(pendingFiles, channels, chs);
+        
+        overlayWriter.close();
+        resultsSink.close();
+        tools.report.write(new File(outDirResults, "run_report.json"));
+        tools.report.close();
+        if (metrics != null)
+            metrics.close();
+    }
+    
+    
+    /**
+     * Analyze images in parallel or in a pipeline, and write their results
+     */
+    private void analyzeFiles(List<String> files, String[] channels, String[] chs) throws IOException, InterruptedException {
+        if (tools.nbParallelImages > 1) {
+            // Analyze images, several at once when memory allows it, and write results in images order
+            BatchExecutor batch = new BatchExecutor(tools.nbParallelImages, tools.maxHeapFraction);
+            batch.run(files, f -> tools.estimateFootprint(f), f -> analyzeImage(f, channels, chs), r -> writeResults(r));
+        } else {
+            // Analyze images one at a time, reading the next one and saving the previous one in background
+            ImagePipeline pipeline = new ImagePipeline(tools.pipelineQueueSize);
+            pipeline.run(files, f -> loadImage(f, channels, chs), r -> processImage(r, chs), r -> {
+                drawImage(r);
+                writeResults(r);
+            });
+        }
+    }
+    
+    
+    /**
+     * Images from first whose nuclei are segmented together:
+     * at most cellPoseBatchSize, and only as many as fit in the heap with their whole analysis (at least one)
+     */
+    private List<String> nextChunk(List<String> files, int first) throws IOException {
+        long budget = (long) (Runtime.getRuntime().maxMemory()*tools.maxHeapFraction);
+        long bytes = 0;
+        int last = first;
+        while (last < files.size() && last - first < tools.cellPoseBatchSize) {
+            try {
+                bytes += tools.estimateFootprint(files.get(last));
+            } catch (Exception ex) {
+                throw new IOException("Cannot read metadata of " + files.get(last), ex);
+            }
+            if (last > first && bytes > budget)
+                break;
+            last++;
+        }
+        return(files.subList(first, last));
+    }
+    
+    
+    /**
+     * Analyze images whose nuclei are segmented with one Cellpose command line call:
+     * each image is read once and its nuclei go straight to its analysis
+     */
+    private void analyzeChunk(List<String> files, String[] channels, String[] chs) throws IOException, InterruptedException {
+        ArrayList<ImageResults> images = new ArrayList<>();
+        try {
+            ArrayList<ImagePlus> imgs = new ArrayList<>();
+            for (String f : files) {
+                ImageResults image = loadImage(f, channels, chs);
+                images.add(image);
+                imgs.add(image.imgNucleus);
+            }
+            tools.report.setImage("cellposeBatch");
+            List<NucleusTable> nuclei;
+            try (RunReport.Stage stage = tools.report.stage("nuclei")) {
+                nuclei = tools.cellposeBatchDetection(imgs, true, "cyto2", 100, 0.5, true);
+            }
+            for (int i = 0; i < images.size(); i++) {
+                ImageResults image = images.get(i);
+                image.nuclei = nuclei.get(i);
+                processImage(image, chs);
+                drawImage(image);
+                writeResults(image);
+            }
+        } catch (IOException | InterruptedException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Cannot analyze images: " + ex.getMessage(), ex);
+        } finally {
+            for (ImageResults image : images)
+                for (ImagePlus img : new ImagePlus[] {image.imgNucleus, image.imgORF1P, image.imgLamin, image.imgCyto})
+                    if (img != null)
+                        tools.flush_close(img);
+        }
+    }
+    
+    
+    /**
+     * Analyze one image from reading to results image,
+     * used when several images are analyzed at once
+     */
+    private ImageResults analyzeImage(String f, String[] channels, String[] chs) throws Exception {
+        ImageResults image = loadImage(f, channels, chs);
+        processImage(image, chs);
+        drawImage(image);
+        return(image);
+    }
+    
+    
+    /**
+     * Open the nucleus, ORF1P and lamin (if provided) channels of one image,
+     * with its own reader so that it can run in background
+     * ORF1P and lamin statistics are computed here, while the channels are still hot
+     */
+    private ImageResults loadImage(String f, String[] channels, String[] chs) throws Exception {
+        ImageResults image = new ImageResults(FilenameUtils.getBaseName(f), f);
+        tools.report.setImage(image.rootName);
+        double[] planeScores = null;
+        try (RunReport.Stage stage = tools.report.stage("decode")) {
+            ImageProcessorReader reader = tools.createReader(f);
+            image.sizeZ = reader.getSizeZ();
+            Rectangle field = new Rectangle(0, 0, reader.getSizeX(), reader.getSizeY());
+
+            // Open DAPI channel, scoring the focus of its planes
+            int indexCh = ArrayUtils.indexOf(channels, chs[0]);
+            if (tools.zCrop)
+                planeScores = new double[image.sizeZ];
+            image.imgNucleus = tools.openChannel(reader, indexCh, image.rootName + "-" + chs[0], field, planeScores);
+
+            // Open ORF1P channel
+            indexCh = ArrayUtils.indexOf(channels, chs[2]);
+            image.imgORF1P = tools.openChannel(reader, indexCh, image.rootName + "-" + chs[2]);
+
+            // Open Lamin channel (if provided)
+            if (!chs[1].equals("None")) {
+                indexCh = ArrayUtils.indexOf(channels, chs[1]);
+                image.imgLamin = tools.openChannel(reader, indexCh, image.rootName + "-" + chs[1]);
+            }
+            reader.close();
+        }
+        try (RunReport.Stage stage = tools.report.stage("channelStats")) {
+            tools.getChannelStats(image.imgORF1P);
+            if (image.imgLamin != null)
+                tools.getChannelStats(image.imgLamin);
+        }
+        if (planeScores != null)
+            cropImage(image, planeScores);
+        return(image);
+    }
+    
+    
+    /**
+     * Crop the channels to the planes in focus in the nucleus channel,
+     * backgrounds are still those of the whole stacks
+     */
+    private void cropImage(ImageResults image, double[] planeScores) {
+        int[] range = ZRange.range(planeScores, tools.zCropMinScore, tools.zCropMargin);
+        System.out.println("Analyzing planes " + (range[0]+1) + " to " + (range[1]+1) + " of " + image.sizeZ);
+        image.zOffset = range[0];
+        if (range[0] == 0 && range[1] == image.sizeZ - 1)
+            return;
+        image.imgNucleus = tools.cropZ(image.imgNucleus, range[0], range[1]);
+        if (image.imgORF1P != null)
+            image.imgORF1P = tools.cropZ(image.imgORF1P, range[0], range[1]);
+        if (image.imgLamin != null)
+            image.imgLamin = tools.cropZ(image.imgLamin, range[0], range[1]);
+    }
+    
+    
+    /**
+     * Detect nuclei and cytoplasm in one image and measure them
+     */
+    private void processImage(ImageResults image, String[] chs) throws Exception {
+        tools.report.setImage(image.rootName);
+        System.out.println("--- ANALYZING IMAGE " + image.rootName + " ------");
+        
+        // Find DAPI nuclei, unless already segmented with other images
+        System.out.println("- Analyzing " + chs[0] + " nuclei channel -");
+        if (image.nuclei == null) {
+            System.out.println("Finding nuclei....");
+            try (RunReport.Stage stage = tools.report.stage("nuclei")) {
+                image.nuclei = tools.cellposeDetection(image.imgNucleus, true, "cyto2", 100, 0.5, true);
+            }
+        }
+        System.out.println(image.nuclei.size() + " " + chs[0] + " nuclei found");
+        tools.flush_close(image.imgNucleus);
+        image.imgNucleus = null;
 
-           
\ No newline at end of file
+        // Threshold cytoplasm
+        System.out.println("- Analyzing " + chs[2] + " ORF1P channel -");
+        System.out.println("Finding cytoplasm....");
+        try (RunReport.Stage stage = tools.report.stage("cytoplasm")) {
+            image.imgCyto = tools.findCellsCyto(image.imgORF1P, image.nuclei);
+        }
+
+        // Tag nuclei with parameters
+        System.out.println("- Measuring cells parameters -");
+        try (RunReport.Stage stage = tools.report.stage("measure")) {
+            image.globalParams = tools.tagCells(image.imgORF1P, image.imgLamin, image.imgCyto, image.nuclei);
+        }
+        
+        // Nuclei positions in the whole stack
+        if (image.zOffset > 0)
+            for (int row = 0; row < image.nuclei.size(); row++)
+                image.nuclei.object(row).translate(0, 0, image.zOffset);
+        if (image.imgLamin != null) {
+            tools.flush_close(image.imgLamin);
+            image.imgLamin = null;
+        }
+    }
+    
+    
+    /**
+     * Hand results image of one image to the background writer (or release its images if not saved)
+     */
+    private void drawImage(ImageResults image) throws IOException, InterruptedException {
+        tools.report.setImage(image.rootName);
+        if (tools.saveOverlay) {
+            System.out.println("- Saving results image of " + image.rootName + " -");
+            overlayWriter.submit(image.nuclei, image.imgCyto, image.imgORF1P, image.zOffset, image.sizeZ, image.rootName, outDirResults);
+        } else {
+            tools.flush_close(image.imgORF1P);
+            tools.flush_close(image.imgCyto);
+        }
+        image.imgORF1P = image.imgCyto = null;
+    }
+    
+    
+    /**
+     * Write nuclei and global parameters of one image
+     */
+    private void writeResults(ImageResults res) throws IOException {
+        tools.report.setImage(res.rootName);
+        try (RunReport.Stage stage = tools.report.stage("results")) {
+            resultsSink.write(res);
+        }
+    }
+}
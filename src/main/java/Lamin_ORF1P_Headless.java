@@ -0,0 +1,144 @@
+import Lamin_ORF1P_Tools.Cellpose.CellposeWorker;
+import Lamin_ORF1P_Tools.Results.ResultsMerger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Run Lamin_ORF1P without Fiji GUI, with parameters read from a properties file:
+ *   java -Djava.awt.headless=true -cp ... Lamin_ORF1P_Headless params.properties [--shard i/n]
+ *   java -Djava.awt.headless=true -cp ... Lamin_ORF1P_Headless params.properties --merge
+ * Parameters are imageDir, outDir (default imageDir/Results), channel.nucleus, channel.lamin, channel.orf1p
+ * and the dialog parameters (see Tools.loadParameters)
+ * With --shard i/n (1 <= i <= n), only the i-th of n contiguous slices of the sorted images is analyzed,
+ * and results are written in outDir/shard_i_of_n; --merge merges all shard folders of outDir in outDir
+ *
+ * @author phm
+ */
+public class Lamin_ORF1P_Headless {
+    
+    private static final Pattern SHARD = Pattern.compile("(\\d+)/(\\d+)");
+    private static final Pattern SHARD_DIR = Pattern.compile("shard_(\\d+)_of_(\\d+)");
+    
+    
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: Lamin_ORF1P_Headless params.properties [--shard i/n | --merge]");
+            System.exit(2);
+        }
+        // No window can be opened, set before any AWT class is loaded
+        System.setProperty("java.awt.headless", "true");
+        int status = 0;
+        try {
+            Properties params = new Properties();
+            try (InputStream in = new FileInputStream(args[0])) {
+                params.load(in);
+            }
+            String imageDir = params.getProperty("imageDir");
+            if (imageDir == null)
+                throw new IllegalArgumentException("imageDir missing in " + args[0]);
+            String outDir = params.getProperty("outDir", imageDir + File.separator + "Results");
+            
+            int shard = 1, nbShards = 1;
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--merge")) {
+                    merge(new File(outDir));
+                    return;
+                } else if (args[i].equals("--shard") && i + 1 < args.length) {
+                    Matcher m = SHARD.matcher(args[++i]);
+                    if (!m.matches())
+                        throw new IllegalArgumentException("Shard must be given as i/n: " + args[i]);
+                    shard = Integer.parseInt(m.group(1));
+                    nbShards = Integer.parseInt(m.group(2));
+                    if (shard < 1 || shard > nbShards)
+                        throw new IllegalArgumentException("Shard must be between 1 and " + nbShards + ": " + args[i]);
+                } else
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+            status = analyze(params, imageDir, outDir, shard, nbShards);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            status = 1;
+        } finally {
+            CellposeWorker.shutdownAll();
+        }
+        System.exit(status);
+    }
+    
+    
+    /**
+     * Analyze the images of one shard
+     */
+    private static int analyze(Properties params, String imageDir, String outDir, int shard, int nbShards) throws Exception {
+        Lamin_ORF1P plugin = new Lamin_ORF1P();
+        if (!plugin.tools.checkInstalledModules())
+            return(1);
+        
+        // Images are sorted by findImages, so shards are the same on every node
+        ArrayList<String> imageFile = plugin.tools.findImages(imageDir, params.getProperty("imageExt", "nd"));
+        if (imageFile == null || imageFile.isEmpty()) {
+            System.out.println("No images found in " + imageDir);
+            return(1);
+        }
+        List<String> shardFiles = imageFile.subList((int) ((long) (shard-1)*imageFile.size()/nbShards), (int) ((long) shard*imageFile.size()/nbShards));
+        System.out.println("Shard " + shard + "/" + nbShards + ": " + shardFiles.size() + " of " + imageFile.size() + " images");
+        
+        ImageProcessorReader reader = plugin.tools.createReader(imageFile.get(0));
+        IMetadata meta = (IMetadata) reader.getMetadataStore();
+        plugin.tools.cal = plugin.tools.findImageCalib(meta);
+        String[] channels = plugin.tools.findChannels(imageFile.get(0), meta, reader);
+        reader.close();
+        String[] chs = plugin.tools.loadParameters(params, channels);
+        if (chs == null)
+            return(1);
+        
+        String outDirResults = (nbShards == 1) ? outDir : outDir + File.separator + "shard_" + shard + "_of_" + nbShards;
+        new File(outDirResults).mkdirs();
+        plugin.analyzeImages(shardFiles, channels, chs, outDirResults + File.separator);
+        System.out.println("--- All done! ---");
+        return(0);
+    }
+    
+    
+    /**
+     * Merge the results of all shards of outDir in outDir
+     */
+    private static void merge(File outDir) throws IOException {
+        File[] dirs = outDir.listFiles(f -> f.isDirectory() && SHARD_DIR.matcher(f.getName()).matches());
+        if (dirs == null || dirs.length == 0)
+            throw new IOException("No shard results found in " + outDir);
+        int nbShards = 0;
+        File[] shards = null;
+        for (File dir : dirs) {
+            Matcher m = SHARD_DIR.matcher(dir.getName());
+            m.matches();
+            int i = Integer.parseInt(m.group(1));
+            int n = Integer.parseInt(m.group(2));
+            if (i < 1 || i > n)
+                throw new IOException("Invalid shard folder " + dir);
+            if (shards == null) {
+                nbShards = n;
+                shards = new File[n];
+            } else if (n != nbShards)
+                throw new IOException("Results of different shardings found in " + outDir);
+            shards[i-1] = dir;
+        }
+        List<File> shardDirs = new ArrayList<>();
+        for (int i = 0; i < nbShards; i++) {
+            if (shards[i] == null)
+                throw new IOException("Results of shard " + (i+1) + "/" + nbShards + " missing in " + outDir);
+            shardDirs.add(shards[i]);
+        }
+        ResultsMerger.merge(shardDirs, outDir);
+        System.out.println(nbShards + " shards merged in " + outDir);
+    }
+}
@@ -0,0 +1,125 @@
+package Lamin_ORF1P_Tools;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Analyze several images at once with a bounded thread pool:
+ * a new image is admitted only when its expected memory footprint fits in the free heap,
+ * results are handed to the writer in the images order
+ * @author phm
+ */
+public class BatchExecutor {
+    
+    public interface Footprint {
+        long estimate(String image) throws Exception;
+    }
+    
+    public interface ImageJob {
+        ImageResults process(String image) throws Exception;
+    }
+    
+    public interface ResultsWriter {
+        void write(ImageResults results) throws IOException;
+    }
+    
+    private final int nbThreads;
+    private final double heapFraction;
+    private long reserved = 0;
+    private int running = 0;
+    
+    
+    public BatchExecutor(int nbThreads, double heapFraction) {
+        this.nbThreads = Math.max(1, nbThreads);
+        this.heapFraction = heapFraction;
+    }
+    
+    
+    /**
+     * Run job on all images, calling writer on each result in the images order
+     */
+    public void run(List<String> images, Footprint footprint, ImageJob job, ResultsWriter writer) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(nbThreads);
+        ArrayDeque<Future<ImageResults>> pending = new ArrayDeque<>();
+        try {
+            for (String image : images) {
+                long bytes;
+                try {
+                    bytes = footprint.estimate(image);
+                } catch (Exception ex) {
+                    throw new IOException("Cannot read metadata of " + image, ex);
+                }
+                // Wait for memory, writing finished results meanwhile
+                while (!tryAdmit(bytes))
+                    writeDone(pending, writer, false);
+                pending.add(pool.submit(() -> {
+                    try {
+                        return job.process(image);
+                    } finally {
+                        release(bytes);
+                    }
+                }));
+                writeDone(pending, writer, false);
+            }
+            writeDone(pending, writer, true);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    
+    /**
+     * Admit an image if nothing is running or if its footprint fits in the heap left,
+     * otherwise wait a bit and return false
+     */
+    private synchronized boolean tryAdmit(long bytes) throws InterruptedException {
+        if (running > 0 && (running >= nbThreads || bytes > availableHeap())) {
+            wait(500);
+            return false;
+        }
+        reserved += bytes;
+        running++;
+        return true;
+    }
+    
+    
+    private synchronized void release(long bytes) {
+        reserved -= bytes;
+        running--;
+        notifyAll();
+    }
+    
+    
+    /**
+     * Heap that can still be given to new images:
+     * part of the max heap not reserved by running images, bounded by the heap actually free
+     */
+    private long availableHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        return Math.min((long)(rt.maxMemory()*heapFraction) - reserved, free);
+    }
+    
+    
+    /**
+     * Write results of the first images of the queue that are done (or all of them if wait)
+     */
+    private void writeDone(ArrayDeque<Future<ImageResults>> pending, ResultsWriter writer, boolean wait) throws IOException, InterruptedException {
+        while (!pending.isEmpty() && (wait || pending.peek().isDone())) {
+            try {
+                writer.write(pending.poll().get());
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                throw new IOException(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+
+/**
+ * 2D median filter of a binary (0/255) stack, slices filtered in parallel
+ * Same circular kernel and edge padding as the ImageJ "Median..." command:
+ * on a binary image the median is a majority vote, so foreground pixels are counted
+ * with row prefix sums instead of sorting the kernel values (O(radius) per pixel instead of O(radius^2))
+ * @author phm
+ */
+public class BinaryMedianFilter {
+    
+    /**
+     * Filter all slices of mask in place
+     */
+    public static void filter(ImagePlus mask, double radius) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        ImageStack stack = mask.getStack();
+        int[] lineRadii = lineRadii(radius);
+        IntStream.rangeClosed(1, stack.getSize()).parallel().forEach(z -> 
+                filterSlice((byte[]) stack.getPixels(z), width, height, lineRadii));
+    }
+    
+    
+    /**
+     * Half width of each kernel line, as in ij.plugin.filter.RankFilters
+     */
+    private static int[] lineRadii(double radius) {
+        if (radius >= 1.5 && radius < 1.75)
+            radius = 1.75;
+        else if (radius >= 2.5 && radius < 2.85)
+            radius = 2.85;
+        int r2 = (int) (radius*radius) + 1;
+        int kRadius = (int) (Math.sqrt(r2 + 1e-10));
+        int[] dx = new int[2*kRadius+1];
+        for (int y = -kRadius; y <= kRadius; y++)
+            dx[y+kRadius] = (int) Math.sqrt(r2 - y*y + 1e-10);
+        return(dx);
+    }
+    
+    
+    private static void filterSlice(byte[] pixels, int width, int height, int[] lineRadii) {
+        int kHeight = lineRadii.length;
+        int kRadius = kHeight/2;
+        int kNPoints = 0;
+        for (int dx : lineRadii)
+            kNPoints += 2*dx + 1;
+        int half = kNPoints/2;
+        
+        // Prefix sums of foreground pixels of the rows under the kernel (ring buffer),
+        // rows padded with their edge pixels
+        int paddedWidth = width + 2*kRadius;
+        int[][] prefix = new int[kHeight][paddedWidth+1];
+        int[] prefixRow = new int[kHeight];
+        Arrays.fill(prefixRow, -1);
+        
+        byte[] out = new byte[pixels.length];
+        for (int y = 0; y < height; y++) {
+            int outOffset = y*width;
+            for (int ky = 0; ky < kHeight; ky++) {
+                int row = Math.min(height-1, Math.max(0, y + ky - kRadius));
+                int slot = row%kHeight;
+                if (prefixRow[slot] != row) {
+                    int[] p = prefix[slot];
+                    int rowOffset = row*width;
+                    for (int i = 0; i < paddedWidth; i++) {
+                        int x = Math.min(width-1, Math.max(0, i - kRadius));
+                        p[i+1] = p[i] + ((pixels[rowOffset+x] != 0) ? 1 : 0);
+                    }
+                    prefixRow[slot] = row;
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                int count = 0;
+                for (int ky = 0; ky < kHeight; ky++) {
+                    int row = Math.min(height-1, Math.max(0, y + ky - kRadius));
+                    int[] p = prefix[row%kHeight];
+                    int dx = lineRadii[ky];
+                    count += p[x + kRadius + dx + 1] - p[x + kRadius - dx];
+                }
+                out[outOffset+x] = (count > half) ? (byte) 255 : 0;
+            }
+        }
+        System.arraycopy(out, 0, pixels, 0, pixels.length);
+    }
+}
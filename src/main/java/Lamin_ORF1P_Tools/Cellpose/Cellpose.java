@@ -17,7 +17,10 @@ import ij.IJ;
 
 public class Cellpose {
 
-    static void execute(List<String> options, CellposeTaskSettings settings, Consumer<InputStream> outputHandler) throws IOException, InterruptedException {
+    /**
+     * Build the command running python with the given arguments in the Cellpose env
+     */
+    static List<String> buildCommand(List<String> pythonArgs, CellposeTaskSettings settings) {
         List<String> cmd = new ArrayList<>();
         List<String> start_cmd = null ;
 
@@ -40,15 +43,15 @@ public class Cellpose {
                 cmd.addAll(conda_activate_cmd);
                 // After starting the env we can now use cellpose
                 cmd.add("&");// to have a second command
-                List<String> cellpose_args_cmd = Arrays.asList("python", "-Xutf8", "-m", "cellpose");
+                List<String> cellpose_args_cmd = Arrays.asList("python", "-Xutf8");
                 cmd.addAll(cellpose_args_cmd);
                 // input options
-                cmd.addAll(options);
+                cmd.addAll(pythonArgs);
             } else if (IJ.isMacOSX() || IJ.isLinux()) {
                 // instead of conda activate (so much headache!!!) specify the python to use
                 String python_path = settings.cellposeEnvDirectory+separatorChar+"bin"+separatorChar+"python";
-                List<String> cellpose_args_cmd = new ArrayList<>(Arrays.asList( python_path , "-m","cellpose"));
-                cellpose_args_cmd.addAll(options);
+                List<String> cellpose_args_cmd = new ArrayList<>(Arrays.asList(python_path));
+                cellpose_args_cmd.addAll(pythonArgs);
 
                 // convert to a string
                 cellpose_args_cmd = cellpose_args_cmd.stream().map(s -> {
@@ -75,9 +78,28 @@ public class Cellpose {
         } else {
             throw new UnsupportedOperationException("Virtual env type unrecognized!");
         }
+        return cmd;
+    }
+
+    /**
+     * Limit the threads of the numerical libraries of a Cellpose process, so that several processes share the cores
+     */
+    static ProcessBuilder limitThreads(ProcessBuilder pb, CellposeTaskSettings settings) {
+        if (settings.nbThreads > 0) {
+            String nbThreads = String.valueOf(settings.nbThreads);
+            for (String var : Arrays.asList("OMP_NUM_THREADS", "MKL_NUM_THREADS", "OPENBLAS_NUM_THREADS", "NUMEXPR_NUM_THREADS"))
+                pb.environment().put(var, nbThreads);
+        }
+        return pb;
+    }
+
+    static void execute(List<String> options, CellposeTaskSettings settings, Consumer<InputStream> outputHandler) throws IOException, InterruptedException {
+        List<String> pythonArgs = new ArrayList<>(Arrays.asList("-m", "cellpose"));
+        pythonArgs.addAll(options);
+        List<String> cmd = buildCommand(pythonArgs, settings);
 
         System.out.println(cmd.toString().replace(",", ""));
-        ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
+        ProcessBuilder pb = limitThreads(new ProcessBuilder(cmd).redirectErrorStream(true), settings);
 
         Process p = pb.start();
         Thread t = new Thread(Thread.currentThread().getName() + "-" + p.hashCode()) {
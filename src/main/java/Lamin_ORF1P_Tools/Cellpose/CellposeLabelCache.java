@@ -0,0 +1,214 @@
+package Lamin_ORF1P_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * On-disk cache of Cellpose label volumes, addressed by a hash of the image sent to Cellpose
+ * and of the Cellpose settings, so that re-running a dataset with other filtering or cytoplasm
+ * parameters does not segment the nuclei again
+ * Label volumes are stored GZIP-compressed, the least recently used ones are deleted beyond maxBytes
+ */
+public class CellposeLabelCache {
+
+    /**
+     * Bump when the stored format or the segmentation pipeline changes
+     */
+    static final int FORMAT_VERSION = 1;
+    private static final String EXT = ".labels.gz";
+
+    private final File dir;
+    private final long maxBytes;
+
+
+    public CellposeLabelCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+    }
+
+
+    /**
+     * Key of the labels of imp (as sent to Cellpose, after resizing) segmented with settings,
+     * labels of the GPU and CPU, worker and command line runs are kept apart as they may differ slightly
+     */
+    public static String key(ImagePlus imp, CellposeTaskSettings settings, float resizeFactor) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        String params = FORMAT_VERSION + "|" + settings.version + "|" + settings.model + "|" + settings.diameter + "|" + resizeFactor
+                + "|" + settings.stitch_threshold + "|" + settings.flow_threshold + "|" + settings.cellprob_threshold
+                + "|" + settings.ch1 + "|" + settings.ch2 + "|" + settings.use3D + "|" + settings.useResample + "|" + settings.omni
+                + "|" + settings.useFastMode + "|" + (settings.useGpu ? "gpu" : "cpu") + "|" + (settings.useWorker ? "worker" : "cli")
+                + "|" + imp.getWidth() + "x" + imp.getHeight() + "x" + imp.getStackSize() + "x" + imp.getBitDepth();
+        md.update(params.getBytes(StandardCharsets.UTF_8));
+
+        ImageStack stack = imp.getStack();
+        ByteBuffer buf = ByteBuffer.allocate(imp.getWidth()*imp.getHeight()*4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int z = 1; z <= stack.getSize(); z++) {
+            Object pixels = stack.getPixels(z);
+            ((Buffer) buf).clear();
+            if (pixels instanceof byte[])
+                buf.put((byte[]) pixels);
+            else if (pixels instanceof short[])
+                buf.asShortBuffer().put((short[]) pixels);
+            else
+                buf.asFloatBuffer().put((float[]) pixels);
+            int length = (pixels instanceof byte[]) ? ((byte[]) pixels).length
+                    : (pixels instanceof short[]) ? ((short[]) pixels).length*2 : ((float[]) pixels).length*4;
+            md.update(buf.array(), 0, length);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+
+    /**
+     * Key of labels looked up with key and the requested settings but segmented with the used ones:
+     * labels of a command line run after a failed worker go under the command line key
+     */
+    public static String usedKey(String key, ImagePlus imp, CellposeTaskSettings requested, CellposeTaskSettings used, float resizeFactor) {
+        if (used.useWorker == requested.useWorker)
+            return key;
+        return key(imp, requested.copy().useWorker(used.useWorker), resizeFactor);
+    }
+
+
+    /**
+     * Whether labels are cached for key
+     */
+    public boolean contains(String key) {
+        return new File(dir, key + EXT).exists();
+    }
+
+
+    /**
+     * Cached labels for key, or null if not cached
+     */
+    public ImagePlus get(String key, String title) {
+        File file = new File(dir, key + EXT);
+        if (!file.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16), 1 << 16))) {
+            int width = in.readInt();
+            int height = in.readInt();
+            int depth = in.readInt();
+            int bitDepth = in.readInt();
+            ImageStack stack = new ImageStack(width, height);
+            byte[] bytes = new byte[width*height*(bitDepth/8)];
+            ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            for (int z = 0; z < depth; z++) {
+                in.readFully(bytes);
+                ((Buffer) buf).clear();
+                if (bitDepth == 16) {
+                    short[] pixels = new short[width*height];
+                    buf.asShortBuffer().get(pixels);
+                    stack.addSlice(new ShortProcessor(width, height, pixels, null));
+                } else {
+                    float[] pixels = new float[width*height];
+                    buf.asFloatBuffer().get(pixels);
+                    stack.addSlice(new FloatProcessor(width, height, pixels));
+                }
+            }
+            file.setLastModified(System.currentTimeMillis());
+            ImagePlus labels = new ImagePlus(title, stack);
+            labels.setDimensions(1, depth, 1);
+            return labels;
+        } catch (IOException ex) {
+            System.out.println("Cannot read cached Cellpose labels " + file.getName() + ": " + ex.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+
+    /**
+     * Store labels (16 or 32-bit) under key, then evict the least recently used entries beyond maxBytes
+     */
+    public void put(String key, ImagePlus labels) {
+        int bitDepth = labels.getBitDepth();
+        if (bitDepth != 16 && bitDepth != 32)
+            return;
+        File file = new File(dir, key + EXT);
+        File tmp = new File(dir, key + EXT + "." + Thread.currentThread().getId() + ".tmp");
+        int width = labels.getWidth();
+        int height = labels.getHeight();
+        ImageStack stack = labels.getStack();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16), 1 << 16))) {
+                out.writeInt(width);
+                out.writeInt(height);
+                out.writeInt(stack.getSize());
+                out.writeInt(bitDepth);
+                ByteBuffer buf = ByteBuffer.allocate(width*height*(bitDepth/8)).order(ByteOrder.LITTLE_ENDIAN);
+                for (int z = 1; z <= stack.getSize(); z++) {
+                    ((Buffer) buf).clear();
+                    if (bitDepth == 16)
+                        buf.asShortBuffer().put((short[]) stack.getPixels(z));
+                    else
+                        buf.asFloatBuffer().put((float[]) stack.getPixels(z));
+                    out.write(buf.array());
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.out.println("Cannot cache Cellpose labels: " + ex.getMessage());
+            tmp.delete();
+            return;
+        }
+        evict();
+    }
+
+
+    /**
+     * Delete least recently used entries until the cache fits in maxBytes
+     */
+    private synchronized void evict() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(EXT));
+        if (files == null)
+            return;
+        long total = 0;
+        for (File f : files)
+            total += f.length();
+        if (total <= maxBytes)
+            return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            if (total <= maxBytes)
+                break;
+            long length = f.length();
+            if (f.delete())
+                total -= length;
+        }
+    }
+}
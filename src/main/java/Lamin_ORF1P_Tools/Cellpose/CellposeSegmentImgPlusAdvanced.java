@@ -9,6 +9,9 @@ import ij.plugin.Duplicator;
 import ij.process.ImageConverter;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,28 +21,47 @@ public class CellposeSegmentImgPlusAdvanced {
     ImagePlus imp;
     ImagePlus cellpose_imp;
     
+    /**
+     * The settings are copied, the ones actually used are given by getSettings() once run
+     */
     public CellposeSegmentImgPlusAdvanced(CellposeTaskSettings settings, ImagePlus imp) {
-        this.settings = settings;
+        this.settings = settings.copy();
         this.imp = imp;
     }
     
+    /**
+     * Settings the stack was segmented with: without the worker if it failed and the command line was used instead
+     */
+    public CellposeTaskSettings getSettings() {
+        return settings;
+    }
+    
     public ImagePlus run() {
         
         Calibration cal = imp.getCalibration();
-
-        // Create temp folder to temporarily save the current time-point of the imp
-        String tempDir = IJ.getDirectory("Temp");
-        File cellposeTempDir = new File(tempDir, "cellposeTemp");
-        cellposeTempDir.mkdir();
-
-        // When plugin crashes, image files can pile up in the temp folder, so we make sure to clear everything
-        File[] contents = cellposeTempDir.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                f.delete();
+        
+        // With the worker, exchange the stack through shared memory instead of TIFF files
+        if (settings.useWorker && imp.getNFrames() == 1) {
+            try {
+                cellpose_imp = runShared();
+                cellpose_imp.setCalibration(cal);
+                return cellpose_imp;
+            } catch (IOException | UnsupportedOperationException e) {
+                System.out.println(e.getMessage() + ", falling back to Cellpose command line");
+                settings.useWorker(false);
             }
         }
 
+        // Create a temp folder of its own to temporarily save the current time-point of the imp,
+        // so that several images can be segmented at once
+        File cellposeTempDir;
+        try {
+            cellposeTempDir = Files.createTempDirectory(Paths.get(IJ.getDirectory("Temp")), "cellposeTemp").toFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
         // Add temp folder to the settings
         settings.setDatasetDir(cellposeTempDir.toString());
 
@@ -99,12 +121,16 @@ public class CellposeSegmentImgPlusAdvanced {
                         cellpose_t_imp.setProcessor(cellpose_t_imp.getProcessor().convertToShort(false));
                     }
                 }
-                imps.add(cellpose_t_imp.duplicate());
+                imps.add(cellpose_t_imp);
             }
             // Convert the ArrayList to an imp
             // https://stackoverflow.com/questions/9572795/convert-list-to-array-in-java
-            ImagePlus[] impsArray = imps.toArray(new ImagePlus[0]);
-            cellpose_imp = Concatenator.run(impsArray);
+            if (impFrames == 1) {
+                cellpose_imp = imps.get(0);
+            } else {
+                ImagePlus[] impsArray = imps.toArray(new ImagePlus[0]);
+                cellpose_imp = Concatenator.run(impsArray);
+            }
             cellpose_imp.setCalibration(cal);
             cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
 
@@ -121,4 +147,32 @@ public class CellposeSegmentImgPlusAdvanced {
         }
         return cellpose_imp;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Segment the stack with the Cellpose worker, through raw memory-mapped files
+     */
+    private ImagePlus runShared() throws IOException {
+        if (settings.stitch_threshold > -1 || imp.getNSlices() == 1)
+            settings.use3D(false);
+        String dtype = CellposeSharedStack.dtype(imp);
+        CellposeWorker.checkSupported(settings);
+        CellposeWorker worker = CellposeWorker.acquire(settings);
+        
+        File sharedDir = CellposeSharedStack.sharedDir();
+        File input = null, output = null;
+        try {
+            input = File.createTempFile("cellpose-in-", ".raw", sharedDir);
+            output = File.createTempFile("cellpose-out-", ".raw", sharedDir);
+            CellposeSharedStack.write(imp, input);
+            int[] shape = {imp.getStackSize(), imp.getHeight(), imp.getWidth()};
+            worker.segmentRaw(input, dtype, shape, output, settings);
+            return CellposeSharedStack.readLabels(output, imp.getWidth(), imp.getHeight(), imp.getStackSize(), imp.getShortTitle() + "-cellpose");
+        } finally {
+            CellposeWorker.release(settings, worker);
+            if (input != null)
+                input.delete();
+            if (output != null)
+                output.delete();
+        }
+    }
+}
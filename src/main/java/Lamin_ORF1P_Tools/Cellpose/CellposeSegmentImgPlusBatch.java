@@ -0,0 +1,163 @@
+package Lamin_ORF1P_Tools.Cellpose;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ImageConverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Segment several single time-point stacks with one Cellpose command line call:
+ * all stacks are saved in the same task folder, so that Python starts and the model loads once
+ * With nbWorkers Cellpose processes, stacks are split between them and segmented at once
+ * Label images are returned in the order of the stacks, null for a stack Cellpose did not segment,
+ * getSettings() gives the settings each stack was actually segmented with (without the worker if it failed)
+ */
+public class CellposeSegmentImgPlusBatch {
+    
+    CellposeTaskSettings settings;
+    List<ImagePlus> imps;
+    CellposeTaskSettings[] usedSettings;
+    
+    public CellposeSegmentImgPlusBatch(CellposeTaskSettings settings, List<ImagePlus> imps) {
+        this.settings = settings;
+        this.imps = imps;
+    }
+    
+    public List<ImagePlus> run() throws IOException {
+        for (ImagePlus imp : imps)
+            if (imp.getNFrames() > 1)
+                throw new IllegalArgumentException(imp.getTitle() + " has several time-points, segment it alone");
+        usedSettings = new CellposeTaskSettings[imps.size()];
+        int nbProcesses = Math.min(settings.nbWorkers, imps.size());
+        if (nbProcesses <= 1)
+            return runProcess(settings.copy(), imps, usedSettings, 0, 1);
+        
+        // Stacks dealt to the processes in turn, each process with its own copy of the settings
+        ExecutorService executor = Executors.newFixedThreadPool(nbProcesses);
+        try {
+            List<Future<List<ImagePlus>>> results = new ArrayList<>();
+            for (int p = 0; p < nbProcesses; p++) {
+                List<ImagePlus> share = new ArrayList<>();
+                for (int i = p; i < imps.size(); i += nbProcesses)
+                    share.add(imps.get(i));
+                CellposeTaskSettings processSettings = settings.copy();
+                int first = p;
+                results.add(executor.submit(() -> runProcess(processSettings, share, usedSettings, first, nbProcesses)));
+            }
+            ImagePlus[] labels = new ImagePlus[imps.size()];
+            for (int p = 0; p < nbProcesses; p++) {
+                List<ImagePlus> share = results.get(p).get();
+                for (int j = 0; j < share.size(); j++)
+                    labels[p + j*nbProcesses] = share.get(j);
+            }
+            return new ArrayList<>(Arrays.asList(labels));
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while segmenting with Cellpose");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Settings each stack was segmented with, in the order of the stacks, once run
+     */
+    public List<CellposeTaskSettings> getSettings() {
+        return Arrays.asList(usedSettings);
+    }
+    
+    /**
+     * Segment stacks with one Cellpose process,
+     * the settings used for stack j are put in used[first + j*step]
+     */
+    private static List<ImagePlus> runProcess(CellposeTaskSettings settings, List<ImagePlus> imps,
+            CellposeTaskSettings[] used, int first, int step) throws IOException {
+        List<ImagePlus> labels = new ArrayList<>(imps.size());
+        
+        // The worker already loads the model once, segment stacks one by one through shared memory
+        if (settings.useWorker) {
+            for (int j = 0; j < imps.size(); j++) {
+                CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imps.get(j));
+                labels.add(cellpose.run());
+                used[first + j*step] = cellpose.getSettings();
+            }
+            return labels;
+        }
+        
+        File cellposeTempDir = Files.createTempDirectory(Paths.get(IJ.getDirectory("Temp")), "cellposeBatch").toFile();
+        settings.setDatasetDir(cellposeTempDir.toString());
+        boolean all2D = true;
+        for (ImagePlus imp : imps)
+            all2D &= imp.getNSlices() == 1;
+        if (settings.use3D && all2D) {
+            System.out.println("WARNING: Can't use 3D mode on 2D images. 2D mode will be used");
+            settings.use3D(false);
+        }
+        
+        // Stacks are numbered, titles of images from different files may be the same
+        List<File> inputs = new ArrayList<>();
+        List<File> masks = new ArrayList<>();
+        List<File> outlines = new ArrayList<>();
+        try {
+            for (int i = 0; i < imps.size(); i++) {
+                ImagePlus imp = imps.get(i);
+                String name = String.format("%04d", i) + "-" + imp.getShortTitle().replaceAll("[^\\w.-]", "_");
+                File input = new File(cellposeTempDir, name + ".tif");
+                new FileSaver(imp).saveAsTiff(input.toString());
+                inputs.add(input);
+                masks.add(new File(cellposeTempDir, name + "_cp_masks.tif"));
+                outlines.add(new File(cellposeTempDir, name + "_cp_outlines.txt"));
+            }
+            System.out.println("Segmenting " + imps.size() + " stacks with one Cellpose call");
+            
+            CellposeTask cellposeTask = new CellposeTask();
+            cellposeTask.setSettings(settings);
+            try {
+                cellposeTask.run();
+            } catch (Exception e) {
+                throw new IOException("Cellpose failed: " + e.getMessage(), e);
+            }
+            
+            for (int i = 0; i < imps.size(); i++) {
+                used[first + i*step] = settings;
+                ImagePlus cellpose_imp = masks.get(i).exists() ? IJ.openImage(masks.get(i).toString()) : null;
+                if (cellpose_imp == null) {
+                    System.out.println("No Cellpose labels for " + imps.get(i).getTitle());
+                    labels.add(null);
+                    continue;
+                }
+                // make sure to make a 16-bit imp
+                if (cellpose_imp.getBitDepth() != 16) {
+                    if (cellpose_imp.getNSlices() > 1)
+                        new ImageConverter(cellpose_imp).convertToGray16();
+                    else
+                        cellpose_imp.setProcessor(cellpose_imp.getProcessor().convertToShort(false));
+                }
+                cellpose_imp.setCalibration(imps.get(i).getCalibration());
+                cellpose_imp.setTitle(imps.get(i).getShortTitle() + "-cellpose");
+                labels.add(cellpose_imp);
+            }
+        } finally {
+            for (List<File> files : Arrays.asList(inputs, masks, outlines))
+                for (File file : files)
+                    file.delete();
+            cellposeTempDir.delete();
+        }
+        return labels;
+    }
+}
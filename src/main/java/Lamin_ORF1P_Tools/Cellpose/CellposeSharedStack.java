@@ -0,0 +1,93 @@
+package Lamin_ORF1P_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Raw stacks exchanged with the Cellpose worker through memory-mapped files,
+ * in shared memory (/dev/shm) when available:
+ * planes are copied straight between ImageJ pixel arrays and the mapping,
+ * in C order (z, y, x) and little-endian as read by numpy.memmap
+ */
+public class CellposeSharedStack {
+
+    /**
+     * Folder for the raw files: shared memory if available, temp folder otherwise
+     */
+    public static File sharedDir() {
+        File shm = new File("/dev/shm");
+        if (shm.isDirectory() && shm.canWrite())
+            return shm;
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+
+    /**
+     * numpy dtype of the image pixels
+     */
+    public static String dtype(ImagePlus imp) {
+        switch (imp.getBitDepth()) {
+            case 8 :
+                return "uint8";
+            case 16 :
+                return "uint16";
+            case 32 :
+                return "float32";
+            default :
+                throw new UnsupportedOperationException("Cannot share " + imp.getBitDepth() + "-bit images with Cellpose");
+        }
+    }
+
+
+    /**
+     * Write all the slices of imp in file
+     */
+    public static void write(ImagePlus imp, File file) throws IOException {
+        ImageStack stack = imp.getStack();
+        int planeSize = imp.getWidth()*imp.getHeight();
+        int bytes = imp.getBitDepth()/8;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel ch = raf.getChannel()) {
+            for (int z = 0; z < stack.getSize(); z++) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, (long)z*planeSize*bytes, (long)planeSize*bytes);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                Object pixels = stack.getPixels(z+1);
+                if (pixels instanceof byte[])
+                    buf.put((byte[]) pixels);
+                else if (pixels instanceof short[])
+                    buf.asShortBuffer().put((short[]) pixels);
+                else
+                    buf.asFloatBuffer().put((float[]) pixels);
+            }
+        }
+    }
+
+
+    /**
+     * Read a 16-bit label volume from file, directly into the pixel arrays of a new stack
+     */
+    public static ImagePlus readLabels(File file, int width, int height, int depth, String title) throws IOException {
+        ImageStack stack = new ImageStack(width, height);
+        int planeSize = width*height;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+            for (int z = 0; z < depth; z++) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, (long)z*planeSize*2, (long)planeSize*2);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                short[] pixels = new short[planeSize];
+                buf.asShortBuffer().get(pixels);
+                stack.addSlice(new ShortProcessor(width, height, pixels, null));
+            }
+        }
+        ImagePlus labels = new ImagePlus(title, stack);
+        labels.setDimensions(1, depth, 1);
+        return labels;
+    }
+}
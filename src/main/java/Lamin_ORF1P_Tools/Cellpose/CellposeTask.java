@@ -1,5 +1,7 @@
 package Lamin_ORF1P_Tools.Cellpose;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 public class CellposeTask {
@@ -11,6 +13,16 @@ public class CellposeTask {
     }
 
     public void run() throws Exception {
+        if (settings.useWorker) {
+            try {
+                runWorker();
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                System.out.println(e.getMessage() + ", falling back to Cellpose command line");
+                settings.useWorker(false);
+            }
+        }
+        
         ArrayList<String> options = new ArrayList<>();
 
         options.add("--dir");
@@ -78,4 +90,27 @@ public class CellposeTask {
         
         Cellpose.execute(options, settings, null);
     }
+    
+    /**
+     * Segment the images of the dataset folder with the persistent worker,
+     * masks are saved with the same names as the command line ones
+     */
+    private void runWorker() throws IOException {
+        if (settings.stitch_threshold > -1)
+            settings.use3D(false); // has to be 2D!
+        File[] images = new File(settings.datasetDir).listFiles((dir, name) -> name.endsWith(".tif") && !name.endsWith("_cp_masks.tif"));
+        if (images == null)
+            throw new IOException("Cannot list " + settings.datasetDir);
+        CellposeWorker.checkSupported(settings);
+        CellposeWorker worker = CellposeWorker.acquire(settings);
+        try {
+            for (File image : images) {
+                String name = image.getName();
+                File mask = new File(image.getParentFile(), name.substring(0, name.length() - 4) + "_cp_masks.tif");
+                worker.segment(image, mask, settings);
+            }
+        } finally {
+            CellposeWorker.release(settings, worker);
+        }
+    }
 }
@@ -1,7 +1,7 @@
 package Lamin_ORF1P_Tools.Cellpose;
 
 
-public class CellposeTaskSettings {
+public class CellposeTaskSettings implements Cloneable {
     
     // Values defined from https://cellpose.readthedocs.io/en/latest/api.html
     String datasetDir;
@@ -24,6 +24,14 @@ public class CellposeTaskSettings {
     boolean omni = false;
     boolean cluster = false;
     boolean verbose = false;
+    boolean useWorker = false;
+    String workerScript = null;
+    // Cellpose processes run at once and threads of each one (0 = torch default)
+    int nbWorkers = 1;
+    int nbThreads = 0;
+    // Time allowed for one worker request: fixed part and part per million voxels of the stack
+    long requestTimeoutSeconds = 300;
+    double requestTimeoutSecondsPerMVoxel = 60;
     
     
     public CellposeTaskSettings(String model, int ch1, int diameter, String cellposeEnvDirectory) {
@@ -122,5 +130,46 @@ public class CellposeTaskSettings {
         this.verbose = verbose;
         return this;
     }
+    
+    public CellposeTaskSettings useWorker(boolean useWorker) {
+        this.useWorker = useWorker;
+        return this;
+    }
+    
+    public CellposeTaskSettings setWorkerScript(String workerScript) {
+        this.workerScript = workerScript;
+        return this;
+    }
+    
+    public CellposeTaskSettings setNbWorkers(int nbWorkers) {
+        this.nbWorkers = Math.max(1, nbWorkers);
+        return this;
+    }
+    
+    public CellposeTaskSettings setNbThreads(int nbThreads) {
+        this.nbThreads = Math.max(0, nbThreads);
+        return this;
+    }
+    
+    public CellposeTaskSettings setRequestTimeout(long seconds, double secondsPerMVoxel) {
+        this.requestTimeoutSeconds = seconds;
+        this.requestTimeoutSecondsPerMVoxel = secondsPerMVoxel;
+        return this;
+    }
+    
+    /**
+     * Time allowed for the worker to segment a stack of the given number of voxels
+     */
+    long requestTimeoutSeconds(long voxels) {
+        return requestTimeoutSeconds + (long) Math.ceil(requestTimeoutSecondsPerMVoxel*voxels/1e6);
+    }
+    
+    public CellposeTaskSettings copy() {
+        try {
+            return (CellposeTaskSettings) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
        
 }
@@ -0,0 +1,325 @@
+package Lamin_ORF1P_Tools.Cellpose;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Long-lived Cellpose process:
+ * the model is loaded once, then images are sent one by one through the process stdin
+ * and the worker answers on stdout with one line per request
+ * Workers are shared per env/model/gpu/threads, up to nbWorkers of them run at once for the same settings,
+ * each one is used by one thread between acquire() and release(), and they stay alive until shutdownAll() is called
+ * A worker that does not answer a request in time (from the settings and the stack size) is discarded,
+ * so that the caller falls back on the command line
+ */
+public class CellposeWorker {
+
+    static final String MARKER = "@@cellpose-worker@@";
+    static final String EOF = "{\"status\": \"eof\"}";
+    private static final Pattern STATUS = Pattern.compile("\"status\":\\s*\"(\\w+)\"");
+    private static final Pattern MESSAGE = Pattern.compile("\"message\":\\s*\"(.*)\"");
+
+    private static final HashMap<String, List<CellposeWorker>> workers = new HashMap<>();
+    private static final HashMap<String, BlockingQueue<CellposeWorker>> idleWorkers = new HashMap<>();
+    private static final HashMap<String, Integer> startingWorkers = new HashMap<>();
+    // Settings whose worker failed to start, the command line is used for them until shutdownAll()
+    private static final HashSet<String> failedKeys = new HashSet<>();
+    // Time for python to import torch and load the model
+    static long startTimeoutSeconds = 600;
+    private static boolean hookInstalled = false;
+
+    private final Process process;
+    private final BufferedWriter stdIn;
+    private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+    private volatile boolean discarded = false;
+
+
+    private CellposeWorker(CellposeTaskSettings settings) throws IOException {
+        List<String> pythonArgs = new ArrayList<>(Arrays.asList("-u", workerScript(settings), "--model", settings.model));
+        if (settings.useGpu)
+            pythonArgs.add("--gpu");
+        List<String> cmd = Cellpose.buildCommand(pythonArgs, settings);
+        System.out.println("Starting Cellpose worker: " + cmd.toString().replace(",", ""));
+
+        process = Cellpose.limitThreads(new ProcessBuilder(cmd).redirectErrorStream(true), settings).start();
+        stdIn = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        Thread t = new Thread("cellpose-worker-" + process.hashCode()) {
+            @Override
+            public void run() {
+                BufferedReader stdOut = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+                try {
+                    for (String line = stdOut.readLine(); line != null; line = stdOut.readLine()) {
+                        if (line.startsWith(MARKER))
+                            replies.add(line.substring(MARKER.length()).trim());
+                        else
+                            System.out.println(line);
+                    }
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+                replies.add(EOF);
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+
+        String ready = waitReply(startTimeoutSeconds);
+        if (!"ready".equals(status(ready))) {
+            process.destroy();
+            throw new IOException("Cellpose worker failed to start: " + ((ready == null) ? "no answer after " + startTimeoutSeconds + " s" : ready));
+        }
+    }
+
+
+    /**
+     * Take an idle worker matching the settings, starting one if less than nbWorkers run,
+     * waiting for one to be released otherwise
+     * Workers are started outside the lock, so that several of them load the model at once
+     */
+    public static CellposeWorker acquire(CellposeTaskSettings settings) throws IOException {
+        String key = key(settings);
+        while (true) {
+            BlockingQueue<CellposeWorker> idle;
+            boolean start = false;
+            synchronized (CellposeWorker.class) {
+                if (failedKeys.contains(key))
+                    throw new IOException("Cellpose worker failed to start earlier in this run");
+                idle = idleWorkers.computeIfAbsent(key, k -> new LinkedBlockingQueue<>());
+                List<CellposeWorker> started = workers.computeIfAbsent(key, k -> new ArrayList<>());
+                started.removeIf(w -> !w.process.isAlive());
+                for (CellposeWorker worker = idle.poll(); worker != null; worker = idle.poll())
+                    if (worker.isAlive())
+                        return worker;
+                if (started.size() + startingWorkers.getOrDefault(key, 0) < settings.nbWorkers) {
+                    startingWorkers.merge(key, 1, Integer::sum);
+                    start = true;
+                }
+            }
+            if (start) {
+                CellposeWorker worker = null;
+                try {
+                    worker = new CellposeWorker(settings);
+                    return worker;
+                } catch (IOException e) {
+                    synchronized (CellposeWorker.class) {
+                        failedKeys.add(key);
+                    }
+                    throw e;
+                } finally {
+                    synchronized (CellposeWorker.class) {
+                        startingWorkers.merge(key, -1, Integer::sum);
+                        if (worker != null) {
+                            workers.computeIfAbsent(key, k -> new ArrayList<>()).add(worker);
+                            if (!hookInstalled) {
+                                Runtime.getRuntime().addShutdownHook(new Thread(CellposeWorker::shutdownAll));
+                                hookInstalled = true;
+                            }
+                        }
+                    }
+                }
+            }
+            try {
+                CellposeWorker worker = idle.poll(1, TimeUnit.SECONDS);
+                if (worker != null && worker.isAlive())
+                    return worker;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a Cellpose worker");
+            }
+        }
+    }
+
+
+    /**
+     * Give back a worker taken with acquire(), a worker that died is discarded
+     */
+    public static synchronized void release(CellposeTaskSettings settings, CellposeWorker worker) {
+        if (!worker.isAlive()) {
+            discard(settings, worker);
+            return;
+        }
+        BlockingQueue<CellposeWorker> idle = idleWorkers.get(key(settings));
+        if (idle != null)
+            idle.add(worker);
+    }
+
+
+    /**
+     * Stop and forget one worker (after a failure), the other workers of the same settings keep running
+     */
+    public static synchronized void discard(CellposeTaskSettings settings, CellposeWorker worker) {
+        List<CellposeWorker> started = workers.get(key(settings));
+        if (started != null)
+            started.remove(worker);
+        BlockingQueue<CellposeWorker> idle = idleWorkers.get(key(settings));
+        if (idle != null)
+            idle.remove(worker);
+        worker.discarded = true;
+        worker.process.destroy();
+    }
+
+
+    /**
+     * Stop all running workers, to be called at the end of a batch
+     */
+    public static synchronized void shutdownAll() {
+        for (List<CellposeWorker> started : workers.values())
+            for (CellposeWorker worker : started)
+                worker.quit();
+        workers.clear();
+        idleWorkers.clear();
+        failedKeys.clear();
+    }
+
+
+    /**
+     * Segment one image file and save the label image to output,
+     * the request timeout counts one voxel per byte of the file
+     */
+    public synchronized void segment(File input, File output, CellposeTaskSettings settings) throws IOException {
+        checkSupported(settings);
+        request("{\"cmd\": \"segment\", \"input\": " + quote(input.getAbsolutePath()) + ", \"output\": " + quote(output.getAbsolutePath())
+                + evalOptions(settings) + "}", input.getName(), settings, settings.requestTimeoutSeconds(input.length()));
+    }
+
+
+    /**
+     * Segment a raw stack of the given numpy dtype and shape (z, y, x),
+     * the uint16 label volume is written as raw in output
+     */
+    public synchronized void segmentRaw(File input, String dtype, int[] shape, File output, CellposeTaskSettings settings) throws IOException {
+        checkSupported(settings);
+        request("{\"cmd\": \"segment_raw\", \"input\": " + quote(input.getAbsolutePath()) + ", \"output\": " + quote(output.getAbsolutePath())
+                + ", \"dtype\": \"" + dtype + "\", \"shape\": [" + shape[0] + ", " + shape[1] + ", " + shape[2] + "]"
+                + evalOptions(settings) + "}", input.getName(), settings, settings.requestTimeoutSeconds((long) shape[0]*shape[1]*shape[2]));
+    }
+
+
+    /**
+     * Send a request and check its reply, the worker is discarded if no reply comes within timeoutSeconds
+     */
+    private void request(String request, String name, CellposeTaskSettings settings, long timeoutSeconds) throws IOException {
+        send(request);
+        String reply = waitReply(timeoutSeconds);
+        if (reply == null) {
+            discard(settings, this);
+            throw new IOException("Cellpose worker gave no answer on " + name + " after " + timeoutSeconds + " s");
+        }
+        String status = status(reply);
+        if (!"ok".equals(status)) {
+            Matcher m = MESSAGE.matcher(reply);
+            throw new IOException("Cellpose worker failed on " + name + ": " + (m.find() ? m.group(1) : reply));
+        }
+    }
+
+
+    boolean isAlive() {
+        return !discarded && process.isAlive();
+    }
+
+
+    /**
+     * Options of the command line without an equivalent in the worker, such settings must use the command line
+     */
+    static void checkSupported(CellposeTaskSettings settings) {
+        if (settings.omni || settings.cluster)
+            throw new UnsupportedOperationException("Omnipose options are not supported by the Cellpose worker");
+    }
+
+
+    /**
+     * model.eval() options matching the command line options built by CellposeTask
+     */
+    static String evalOptions(CellposeTaskSettings settings) {
+        return ", \"channels\": [" + settings.ch1 + ", " + Math.max(settings.ch2, 0) + "], \"diameter\": " + settings.diameter
+                + ", \"flow_threshold\": " + settings.flow_threshold + ", \"cellprob_threshold\": " + settings.cellprob_threshold
+                + ", \"stitch_threshold\": " + settings.stitch_threshold + ", \"do_3D\": " + (settings.use3D ? "true" : "false")
+                + ", \"fast_mode\": " + (settings.useFastMode ? "true" : "false")
+                + ", \"resample\": " + (settings.useResample && !settings.version.equals("1.0") && !settings.version.equals("2.0") ? "true" : "false");
+    }
+
+
+    private void quit() {
+        try {
+            send("{\"cmd\": \"quit\"}");
+            stdIn.close();
+            process.waitFor();
+        } catch (IOException | InterruptedException e) {
+            process.destroy();
+        }
+    }
+
+
+    private void send(String request) throws IOException {
+        if (!process.isAlive())
+            throw new IOException("Cellpose worker is not running");
+        stdIn.write(request);
+        stdIn.newLine();
+        stdIn.flush();
+    }
+
+
+    /**
+     * Reply, or null if none came within timeout
+     */
+    private String waitReply(long timeoutSeconds) throws IOException {
+        try {
+            return replies.poll(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Cellpose worker");
+        }
+    }
+
+
+    private static String status(String reply) {
+        Matcher m = STATUS.matcher(reply);
+        return m.find() ? m.group(1) : "";
+    }
+
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+
+    private static String key(CellposeTaskSettings settings) {
+        return settings.cellposeEnvDirectory + "|" + settings.envType + "|" + settings.model + "|" + settings.useGpu + "|" + settings.nbThreads + "|" + settings.workerScript;
+    }
+
+
+    /**
+     * Worker script given in the settings (a stub can be used to test the protocol),
+     * or the one shipped in the jar extracted to the temp folder
+     */
+    private static String workerScript(CellposeTaskSettings settings) throws IOException {
+        if (settings.workerScript != null)
+            return settings.workerScript;
+        File script = new File(System.getProperty("java.io.tmpdir"), "cellpose_worker.py");
+        try (InputStream in = CellposeWorker.class.getResourceAsStream("/cellpose_worker.py")) {
+            if (in == null)
+                throw new IOException("cellpose_worker.py not found in plugin resources");
+            Files.copy(in, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return script.getAbsolutePath();
+    }
+}
@@ -0,0 +1,108 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.util.stream.IntStream;
+
+
+/**
+ * Statistics of one channel stack, computed in a single pass, rows in parallel:
+ * min intensity Z projection and its median, whole stack histogram and range
+ * @author phm
+ */
+public class ChannelStats {
+    
+    public int width, height;
+    public float[] minProjection;
+    public double minProjectionMedian;
+    // Whole stack histogram with one bin per value (8 and 16-bit images only)
+    public int[] histogram;
+    public double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+    
+    
+    public ChannelStats(ImagePlus img) {
+        ImageStack stack = img.getStack();
+        width = img.getWidth();
+        height = img.getHeight();
+        int bitDepth = img.getBitDepth();
+        int bins = (bitDepth == 8) ? 256 : (bitDepth == 16) ? 65536 : 0;
+        minProjection = new float[width*height];
+        
+        // Split rows in chunks, each one with its own histogram
+        int nbChunks = Math.min(height, 4*Runtime.getRuntime().availableProcessors());
+        int[][] chunkHist = new int[nbChunks][];
+        double[][] chunkRange = new double[nbChunks][];
+        IntStream.range(0, nbChunks).parallel().forEach(c -> {
+            int start = (c*height/nbChunks)*width;
+            int end = ((c+1)*height/nbChunks)*width;
+            int[] hist = (bins > 0) ? new int[bins] : null;
+            float chunkMin = Float.MAX_VALUE, chunkMax = -Float.MAX_VALUE;
+            for (int i = start; i < end; i++)
+                minProjection[i] = Float.MAX_VALUE;
+            for (int z = 1; z <= stack.getSize(); z++) {
+                Object pixels = stack.getPixels(z);
+                for (int i = start; i < end; i++) {
+                    float v;
+                    if (bitDepth == 8) {
+                        int p = ((byte[]) pixels)[i] & 0xff;
+                        hist[p]++;
+                        v = p;
+                    } else if (bitDepth == 16) {
+                        int p = ((short[]) pixels)[i] & 0xffff;
+                        hist[p]++;
+                        v = p;
+                    } else {
+                        v = ((float[]) pixels)[i];
+                    }
+                    if (v < minProjection[i])
+                        minProjection[i] = v;
+                    if (v < chunkMin)
+                        chunkMin = v;
+                    if (v > chunkMax)
+                        chunkMax = v;
+                }
+            }
+            chunkHist[c] = hist;
+            chunkRange[c] = new double[] {chunkMin, chunkMax};
+        });
+        
+        // Merge chunks
+        if (bins > 0) {
+            histogram = new int[bins];
+            for (int[] hist : chunkHist)
+                for (int i = 0; i < bins; i++)
+                    histogram[i] += hist[i];
+        }
+        for (double[] range : chunkRange) {
+            min = Math.min(min, range[0]);
+            max = Math.max(max, range[1]);
+        }
+        
+        // Median of the min projection, computed as ImageJ does for the projection image
+        if (bins > 0) {
+            int[] projHist = new int[bins];
+            for (float v : minProjection)
+                projHist[(int) v]++;
+            minProjectionMedian = median(projHist, minProjection.length);
+        } else {
+            minProjectionMedian = new FloatProcessor(width, height, minProjection).getStatistics().median;
+        }
+    }
+    
+    
+    /**
+     * Median of a histogram with one bin per value, as in ImageJ 8 and 16-bit statistics
+     */
+    public static double median(int[] hist, long pixelCount) {
+        if (pixelCount == 0)
+            return Double.NaN;
+        double halfCount = pixelCount/2.0;
+        double sum = 0;
+        int i = -1;
+        do {
+            sum += hist[++i];
+        } while (sum <= halfCount && i < hist.length-1);
+        return i;
+    }
+}
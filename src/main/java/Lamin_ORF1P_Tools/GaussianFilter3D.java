@@ -0,0 +1,154 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.util.stream.IntStream;
+
+
+/**
+ * Separable 3D Gaussian filter on float buffers, lines filtered in parallel
+ * Sigmas are given in pixels along each axis, as in CLIJ2 gaussianBlur3D:
+ * edges are clamped and the result has the bit depth of the input (float values truncated)
+ * @author phm
+ */
+public class GaussianFilter3D {
+    
+    public static ImagePlus filter(ImagePlus img, double sigmaX, double sigmaY, double sigmaZ) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int depth = img.getStackSize();
+        int bitDepth = img.getBitDepth();
+        ImageStack stack = img.getStack();
+        
+        // Copy stack to float planes
+        float[][] planes = new float[depth][];
+        IntStream.range(0, depth).parallel().forEach(z -> planes[z] = toFloat(stack.getPixels(z+1), bitDepth));
+        
+        // Filter along X
+        float[] kernelX = kernel(sigmaX);
+        if (kernelX != null) {
+            IntStream.range(0, depth*height).parallel().forEach(zy -> {
+                float[] plane = planes[zy/height];
+                int offset = (zy%height)*width;
+                float[] line = new float[width];
+                System.arraycopy(plane, offset, line, 0, width);
+                convolve(line, kernelX, plane, offset, 1);
+            });
+        }
+        
+        // Filter along Y
+        float[] kernelY = kernel(sigmaY);
+        if (kernelY != null) {
+            IntStream.range(0, depth*width).parallel().forEach(zx -> {
+                float[] plane = planes[zx/width];
+                int x = zx%width;
+                float[] line = new float[height];
+                for (int y = 0; y < height; y++)
+                    line[y] = plane[y*width+x];
+                convolve(line, kernelY, plane, x, width);
+            });
+        }
+        
+        // Filter along Z
+        float[] kernelZ = kernel(sigmaZ);
+        if (kernelZ != null && depth > 1) {
+            IntStream.range(0, height).parallel().forEach(y -> {
+                float[] line = new float[depth];
+                float[] out = new float[depth];
+                for (int x = y*width; x < (y+1)*width; x++) {
+                    for (int z = 0; z < depth; z++)
+                        line[z] = planes[z][x];
+                    convolve(line, kernelZ, out, 0, 1);
+                    for (int z = 0; z < depth; z++)
+                        planes[z][x] = out[z];
+                }
+            });
+        }
+        
+        // Back to input bit depth
+        ImageStack stackOut = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            switch (bitDepth) {
+                case 8 :
+                    byte[] bytes = new byte[width*height];
+                    for (int i = 0; i < bytes.length; i++)
+                        bytes[i] = (byte) Math.min(255, Math.max(0, (int) planes[z][i]));
+                    stackOut.addSlice(new ByteProcessor(width, height, bytes));
+                    break;
+                case 16 :
+                    short[] shorts = new short[width*height];
+                    for (int i = 0; i < shorts.length; i++)
+                        shorts[i] = (short) Math.min(65535, Math.max(0, (int) planes[z][i]));
+                    stackOut.addSlice(new ShortProcessor(width, height, shorts, null));
+                    break;
+                default :
+                    stackOut.addSlice(new FloatProcessor(width, height, planes[z]));
+            }
+            planes[z] = null;
+        }
+        ImagePlus imgOut = new ImagePlus(img.getTitle() + "-gaussian", stackOut);
+        imgOut.setDimensions(1, depth, 1);
+        return(imgOut);
+    }
+    
+    
+    /**
+     * Normalized Gaussian kernel of radius ceil(3 sigma), null if sigma is 0
+     */
+    private static float[] kernel(double sigma) {
+        if (sigma <= 0)
+            return null;
+        int radius = (int) Math.ceil(3*sigma);
+        float[] kernel = new float[2*radius+1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i+radius] = (float) Math.exp(-(i*i)/(2*sigma*sigma));
+            sum += kernel[i+radius];
+        }
+        for (int i = 0; i < kernel.length; i++)
+            kernel[i] /= sum;
+        return(kernel);
+    }
+    
+    
+    /**
+     * Convolve line with kernel (edges clamped), writing result to out[offset + i*step]
+     */
+    private static void convolve(float[] line, float[] kernel, float[] out, int offset, int step) {
+        int n = line.length;
+        int radius = kernel.length/2;
+        for (int i = 0; i < n; i++) {
+            float sum = 0;
+            for (int k = -radius; k <= radius; k++) {
+                int j = Math.min(n-1, Math.max(0, i+k));
+                sum += kernel[k+radius]*line[j];
+            }
+            out[offset + i*step] = sum;
+        }
+    }
+    
+    
+    private static float[] toFloat(Object pixels, int bitDepth) {
+        float[] out;
+        switch (bitDepth) {
+            case 8 :
+                byte[] bytes = (byte[]) pixels;
+                out = new float[bytes.length];
+                for (int i = 0; i < bytes.length; i++)
+                    out[i] = bytes[i] & 0xff;
+                break;
+            case 16 :
+                short[] shorts = (short[]) pixels;
+                out = new float[shorts.length];
+                for (int i = 0; i < shorts.length; i++)
+                    out[i] = shorts[i] & 0xffff;
+                break;
+            default :
+                out = ((float[]) pixels).clone();
+        }
+        return(out);
+    }
+}
@@ -0,0 +1,110 @@
+package Lamin_ORF1P_Tools;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Analyze images one at a time, in 3 pipelined stages:
+ * image N+1 is read in background while image N is processed in the calling thread,
+ * and image N-1 is saved in background
+ * Queues between stages are bounded, so at most queueSize images wait between two stages
+ * @author phm
+ */
+public class ImagePipeline {
+    
+    public interface Loader {
+        ImageResults load(String image) throws Exception;
+    }
+    
+    public interface Stage {
+        void run(ImageResults image) throws Exception;
+    }
+    
+    private static final Object END = new Object();
+    private final int queueSize;
+    
+    
+    public ImagePipeline(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+    }
+    
+    
+    /**
+     * Load, process and save all images, in the images order
+     */
+    public void run(List<String> images, Loader loader, Stage processor, Stage saver) throws IOException, InterruptedException {
+        BlockingQueue<Object> loaded = new ArrayBlockingQueue<>(queueSize);
+        BlockingQueue<Object> processed = new ArrayBlockingQueue<>(queueSize);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            // Read images in background
+            threads.submit(() -> {
+                try {
+                    for (String image : images)
+                        loaded.put(loader.load(image));
+                    loaded.put(END);
+                } catch (Exception ex) {
+                    putQuietly(loaded, ex);
+                }
+                return null;
+            });
+            
+            // Save images in background
+            Future<Object> saving = threads.submit(() -> {
+                for (Object image = processed.take(); image != END; image = processed.take())
+                    saver.run((ImageResults) image);
+                return null;
+            });
+            
+            // Process images in the calling thread
+            for (Object image = loaded.take(); image != END; image = loaded.take()) {
+                if (image instanceof Exception)
+                    throw asIOException((Exception) image);
+                processor.run((ImageResults) image);
+                handOver(processed, image, saving);
+            }
+            handOver(processed, END, saving);
+            saving.get();
+        } catch (ExecutionException ex) {
+            throw asIOException(ex.getCause());
+        } catch (IOException | InterruptedException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw asIOException(ex);
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+    
+    
+    /**
+     * Put o in the saver queue, unless the saver failed
+     */
+    private static void handOver(BlockingQueue<Object> queue, Object o, Future<Object> saving) throws InterruptedException, ExecutionException {
+        while (!queue.offer(o, 1, TimeUnit.SECONDS))
+            if (saving.isDone())
+                saving.get();
+    }
+    
+    
+    private static void putQuietly(BlockingQueue<Object> queue, Object o) {
+        try {
+            queue.put(o);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    
+    private static IOException asIOException(Throwable t) {
+        return (t instanceof IOException) ? (IOException) t : new IOException(t);
+    }
+}
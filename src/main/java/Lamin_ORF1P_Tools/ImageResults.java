@@ -0,0 +1,36 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import java.util.HashMap;
+
+/**
+ * Nuclei and global parameters of one analyzed image,
+ * with its channels while it goes through the analysis stages
+ * @author phm
+ */
+public class ImageResults {
+    
+    public String rootName;
+    public String imageFile;
+    public NucleusTable nuclei;
+    public HashMap<String, Double> globalParams;
+    
+    public ImagePlus imgNucleus, imgORF1P, imgLamin, imgCyto;
+    // Channels cropped to planes zOffset to zOffset+nSlices-1 of the sizeZ planes of the image
+    public int zOffset = 0, sizeZ = 0;
+    
+    public ImageResults(String rootName) {
+        this.rootName = rootName;
+    }
+    
+    public ImageResults(String rootName, String imageFile) {
+        this.rootName = rootName;
+        this.imageFile = imageFile;
+    }
+    
+    public ImageResults(String rootName, NucleusTable nuclei, HashMap<String, Double> globalParams) {
+        this.rootName = rootName;
+        this.nuclei = nuclei;
+        this.globalParams = globalParams;
+    }
+}
@@ -0,0 +1,96 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.stream.IntStream;
+
+
+/**
+ * One-pass scan of a 16-bit label image:
+ * voxel count and z-extent of every label are collected slice by slice in parallel,
+ * so that labels can be filtered before any 3D object is built
+ * @author phm
+ */
+public class LabelScanner {
+    
+    public int nbLabels = 0;
+    public int[] count;
+    public int[] zmin, zmax;
+    
+    private final ImageStack stack;
+    
+    
+    public LabelScanner(ImagePlus labels) {
+        stack = labels.getStack();
+        scan();
+    }
+    
+    
+    private void scan() {
+        int nbSlices = stack.getSize();
+        
+        // Largest label
+        int maxLabel = IntStream.rangeClosed(1, nbSlices).parallel().map(z -> {
+            short[] pixels = (short[]) stack.getPixels(z);
+            int max = 0;
+            for (short p : pixels)
+                max = Math.max(max, p & 0xffff);
+            return max;
+        }).max().orElse(0);
+        
+        // Voxel count of each label in each slice
+        int[][] sliceCount = new int[nbSlices][];
+        IntStream.range(0, nbSlices).parallel().forEach(z -> {
+            short[] pixels = (short[]) stack.getPixels(z+1);
+            int[] c = new int[maxLabel+1];
+            for (short p : pixels)
+                c[p & 0xffff]++;
+            sliceCount[z] = c;
+        });
+        
+        // Merge slices
+        count = new int[maxLabel+1];
+        zmin = new int[maxLabel+1];
+        zmax = new int[maxLabel+1];
+        for (int l = 1; l <= maxLabel; l++) {
+            zmin[l] = -1;
+            for (int z = 0; z < nbSlices; z++) {
+                int c = sliceCount[z][l];
+                if (c > 0) {
+                    if (zmin[l] < 0)
+                        zmin[l] = z;
+                    zmax[l] = z;
+                    count[l] += c;
+                }
+            }
+            if (count[l] > 0)
+                nbLabels++;
+        }
+    }
+    
+    
+    /**
+     * Keep labels that span more than one z-slice (if zFilter) and whose volume is in [minVol, maxVol],
+     * other voxels are set to 0 and kept labels are renumbered from 1 in labels order
+     * @return number of labels kept
+     */
+    public int filter(boolean zFilter, double minVol, double maxVol, double voxVol) {
+        int[] newLabel = new int[count.length];
+        int kept = 0;
+        for (int l = 1; l < count.length; l++) {
+            if (count[l] == 0)
+                continue;
+            double vol = count[l]*voxVol;
+            if ((zFilter && zmin[l] == zmax[l]) || vol < minVol || vol > maxVol)
+                continue;
+            newLabel[l] = ++kept;
+        }
+        
+        IntStream.rangeClosed(1, stack.getSize()).parallel().forEach(z -> {
+            short[] pixels = (short[]) stack.getPixels(z);
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (short) newLabel[pixels[i] & 0xffff];
+        });
+        return kept;
+    }
+}
@@ -0,0 +1,71 @@
+package Lamin_ORF1P_Tools;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Live run metrics on http://localhost:port/metrics, in Prometheus text format:
+ * totals per stage since the start of the run (thread and process CPU as in RunReport), and heap used at the end of the last stage
+ * @author phm
+ */
+public class MetricsEndpoint implements RunReport.Listener {
+    
+    private final HttpServer server;
+    private final TreeMap<String, RunReport.StageStats> totals = new TreeMap<>();
+    private volatile long heapBytes = 0;
+    
+    
+    public MetricsEndpoint(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = metrics().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Run metrics on http://localhost:" + port + "/metrics");
+    }
+    
+    
+    @Override
+    public synchronized void stageEnded(String image, String stage, long wallNs, long threadCpuNs, long threadAllocatedBytes, long processCpuNs, long heapBytes) {
+        RunReport.StageStats stats = totals.computeIfAbsent(stage, k -> new RunReport.StageStats());
+        stats.count++;
+        stats.wallNs += wallNs;
+        stats.threadCpuNs += threadCpuNs;
+        stats.threadAllocatedBytes += threadAllocatedBytes;
+        stats.processCpuNs += processCpuNs;
+        this.heapBytes = heapBytes;
+    }
+    
+    
+    private synchronized String metrics() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, RunReport.StageStats> e : totals.entrySet()) {
+            String label = "{stage=\"" + e.getKey() + "\"}";
+            RunReport.StageStats s = e.getValue();
+            sb.append("lamin_orf1p_stage_runs_total").append(label).append(' ').append(s.count).append('\n');
+            sb.append("lamin_orf1p_stage_seconds_total").append(label).append(' ').append(s.wallNs/1e9).append('\n');
+            sb.append("lamin_orf1p_stage_thread_cpu_seconds_total").append(label).append(' ').append(s.threadCpuNs/1e9).append('\n');
+            sb.append("lamin_orf1p_stage_thread_allocated_bytes_total").append(label).append(' ').append(s.threadAllocatedBytes).append('\n');
+            sb.append("lamin_orf1p_stage_process_cpu_seconds_total").append(label).append(' ').append(s.processCpuNs/1e9).append('\n');
+        }
+        sb.append("lamin_orf1p_heap_used_bytes ").append(heapBytes).append('\n');
+        return(sb.toString());
+    }
+    
+    
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -1,31 +1,90 @@
 package Lamin_ORF1P_Tools;
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import mcib3d.geom2.Object3DInt;
 
 /**
+ * One nucleus, a view on a row of a NucleusTable
+ * params reads and writes the table by column key
  * @author hm
  */
 public class Nucleus {
     
     public Object3DInt nucleus;
-    public HashMap<String, Double> params;
+    public Map<String, Double> params;
+    private final NucleusTable table;
+    private final int row;
     
     public Nucleus(Object3DInt nucleus) {
-        this.nucleus = nucleus;
-        this.params = new HashMap<>();
+        this(new NucleusTable(Collections.singletonList(nucleus)), 0);
+    }
+    
+    public Nucleus(NucleusTable table, int row) {
+        this.table = table;
+        this.row = row;
+        this.nucleus = table.object(row);
+        this.params = new RowMap();
     }
     
     
     public void setParams(double nucLabel, double nucVol, double nucComp, double nucSph, double nucEllElong, double nucEllFlat, double nucLaminInt,
             double nucIntORF1P) {
-        params.put("nucIndex", nucLabel);
-        params.put("nucVol", nucVol);
-        params.put("nucComp", nucComp);
-        params.put("nucSph", nucSph);
-        params.put("nucEllElong", nucEllElong);
-        params.put("nucEllFlat", nucEllFlat);
-        params.put("nucLaminInt", nucLaminInt);
-        params.put("nucORF1PInt", nucIntORF1P);
+        table.setRow(row, nucLabel, nucVol, nucComp, nucSph, nucEllElong, nucEllFlat, nucLaminInt, nucIntORF1P);
+    }
+    
+    
+    /**
+     * Parameters of the row by column key
+     */
+    private class RowMap extends AbstractMap<String, Double> {
+        
+        @Override
+        public Double get(Object key) {
+            NucleusTable.Column column = (key instanceof String) ? NucleusTable.Column.of((String) key) : null;
+            return((column == null) ? null : table.get(row, column));
+        }
+        
+        @Override
+        public Double put(String key, Double value) {
+            NucleusTable.Column column = NucleusTable.Column.of(key);
+            if (column == null)
+                throw new IllegalArgumentException("No nucleus parameter " + key);
+            double old = table.get(row, column);
+            table.set(row, column, value);
+            return(old);
+        }
+        
+        @Override
+        public Set<Map.Entry<String, Double>> entrySet() {
+            return(new AbstractSet<Map.Entry<String, Double>>() {
+                @Override
+                public Iterator<Map.Entry<String, Double>> iterator() {
+                    return(new Iterator<Map.Entry<String, Double>>() {
+                        private int c = 0;
+                        
+                        @Override
+                        public boolean hasNext() {
+                            return(c < NucleusTable.COLUMNS.length);
+                        }
+                        
+                        @Override
+                        public Map.Entry<String, Double> next() {
+                            NucleusTable.Column column = NucleusTable.COLUMNS[c++];
+                            return(new AbstractMap.SimpleImmutableEntry<>(column.key, table.get(row, column)));
+                        }
+                    });
+                }
+                
+                @Override
+                public int size() {
+                    return(NucleusTable.COLUMNS.length);
+                }
+            });
+        }
     }
 }
@@ -0,0 +1,108 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+
+/**
+ * Quick estimate of the nuclei size in a stack, to choose the Cellpose input resolution:
+ * max intensity Z projection binned in XY, Otsu threshold, then median equivalent diameter
+ * of the blobs not touching the image border
+ * Touching nuclei give one larger blob, the median keeps the estimate on isolated nuclei
+ * @author phm
+ */
+public class NucleusScale {
+    
+    private static final int MIN_BLOB_AREA = 4;
+    
+    
+    /**
+     * Median nucleus diameter in pixels of img, measured on the projection binned by bin pixels,
+     * NaN if no blob is found
+     */
+    public static double medianDiameter(ImagePlus img, int bin) {
+        int width = img.getWidth()/bin;
+        int height = img.getHeight()/bin;
+        if (width < 3 || height < 3)
+            return(Double.NaN);
+        float[] proj = binnedMaxProjection(img, bin, width, height);
+        
+        // Otsu threshold on the projection histogram
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (float v : proj) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        if (max <= min)
+            return(Double.NaN);
+        int[] hist = new int[256];
+        double scale = 256/(max - min);
+        for (float v : proj)
+            hist[Math.min(255, (int) ((v - min)*scale))]++;
+        int level = new AutoThresholder().getThreshold(AutoThresholder.Method.Otsu, hist);
+        double threshold = min + (level + 1)/scale;
+        
+        // Areas of the 4-connected blobs above threshold
+        boolean[] fg = new boolean[proj.length];
+        for (int i = 0; i < proj.length; i++)
+            fg[i] = proj[i] >= threshold;
+        ArrayList<Integer> areas = new ArrayList<>();
+        int[] queue = new int[proj.length];
+        for (int start = 0; start < fg.length; start++) {
+            if (!fg[start])
+                continue;
+            int head = 0, tail = 0;
+            boolean border = false;
+            queue[tail++] = start;
+            fg[start] = false;
+            while (head < tail) {
+                int i = queue[head++];
+                int x = i % width, y = i / width;
+                if (x == 0 || y == 0 || x == width - 1 || y == height - 1) {
+                    border = true;
+                    continue;
+                }
+                for (int n : new int[] {i - 1, i + 1, i - width, i + width})
+                    if (fg[n]) {
+                        fg[n] = false;
+                        queue[tail++] = n;
+                    }
+            }
+            if (!border && tail >= MIN_BLOB_AREA)
+                areas.add(tail);
+        }
+        if (areas.isEmpty())
+            return(Double.NaN);
+        Collections.sort(areas);
+        double area = areas.get(areas.size()/2);
+        return(2*Math.sqrt(area/Math.PI)*bin);
+    }
+    
+    
+    /**
+     * Max over all slices and over bin x bin pixel blocks
+     */
+    private static float[] binnedMaxProjection(ImagePlus img, int bin, int width, int height) {
+        ImageStack stack = img.getStack();
+        int imgWidth = img.getWidth();
+        float[] proj = new float[width*height];
+        Arrays.fill(proj, -Float.MAX_VALUE);
+        for (int z = 1; z <= stack.getSize(); z++) {
+            Object pixels = stack.getPixels(z);
+            for (int y = 0; y < height*bin; y++)
+                for (int x = 0; x < width*bin; x++) {
+                    int i = y*imgWidth + x;
+                    float v = (pixels instanceof byte[]) ? ((byte[]) pixels)[i] & 0xff :
+                            (pixels instanceof short[]) ? ((short[]) pixels)[i] & 0xffff : ((float[]) pixels)[i];
+                    int j = (y/bin)*width + x/bin;
+                    if (v > proj[j])
+                        proj[j] = v;
+                }
+        }
+        return(proj);
+    }
+}
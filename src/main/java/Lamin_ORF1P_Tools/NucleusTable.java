@@ -0,0 +1,127 @@
+package Lamin_ORF1P_Tools;
+
+import java.util.AbstractList;
+import java.util.List;
+import mcib3d.geom2.Object3DInt;
+
+
+/**
+ * Parameters of the nuclei of one image, one primitive array per column, indexed by nucleus
+ * Rows are in nuclei label order, Nucleus objects are views on a row
+ * @author phm
+ */
+public class NucleusTable {
+    
+    /**
+     * Columns: key (as in Nucleus params), header in results files, and integer or floating-point values
+     */
+    public enum Column {
+        INDEX("nucIndex", "Nucleus ID", true),
+        VOLUME("nucVol", "Nucleus volume (µm3)", false),
+        COMPACTNESS("nucComp", "Nucleus compactness", false),
+        SPHERICITY("nucSph", "Nucleus sphericity", false),
+        ELONGATION("nucEllElong", "Nucleus elongation", false),
+        FLATNESS("nucEllFlat", "Nucleus flatness", false),
+        LAMIN_INT("nucLaminInt", "Nucleus bg corr. total intensity in lamin channel", false),
+        ORF1P_INT("nucORF1PInt", "Nucleus bg corr. total intensity in ORF1P channel", false);
+        
+        public final String key, header;
+        public final boolean integer;
+        
+        Column(String key, String header, boolean integer) {
+            this.key = key;
+            this.header = header;
+            this.integer = integer;
+        }
+        
+        public static Column of(String key) {
+            for (Column c : values())
+                if (c.key.equals(key))
+                    return(c);
+            return(null);
+        }
+    }
+    
+    public static final Column[] COLUMNS = Column.values();
+    
+    private final Object3DInt[] objects;
+    private final double[][] values;
+    
+    
+    public NucleusTable(List<Object3DInt> objects) {
+        this.objects = objects.toArray(new Object3DInt[0]);
+        this.values = new double[COLUMNS.length][this.objects.length];
+    }
+    
+    
+    /**
+     * Table of parameters only, without objects (nuclei measured tile by tile)
+     */
+    public NucleusTable(int size) {
+        this.objects = new Object3DInt[size];
+        this.values = new double[COLUMNS.length][size];
+    }
+    
+    
+    public int size() {
+        return(objects.length);
+    }
+    
+    
+    public Object3DInt object(int row) {
+        return(objects[row]);
+    }
+    
+    
+    public double get(int row, Column column) {
+        return(values[column.ordinal()][row]);
+    }
+    
+    
+    public void set(int row, Column column, double value) {
+        values[column.ordinal()][row] = value;
+    }
+    
+    
+    /**
+     * Values of a column, the array is shared with the table
+     */
+    public double[] column(Column column) {
+        return(values[column.ordinal()]);
+    }
+    
+    
+    public double sum(Column column) {
+        double sum = 0;
+        for (double v : values[column.ordinal()])
+            sum += v;
+        return(sum);
+    }
+    
+    
+    /**
+     * Set all the parameters of a row, in columns order
+     */
+    public void setRow(int row, double... rowValues) {
+        for (int c = 0; c < rowValues.length; c++)
+            values[c][row] = rowValues[c];
+    }
+    
+    
+    /**
+     * Nuclei as views on the rows of the table
+     */
+    public List<Nucleus> nuclei() {
+        return(new AbstractList<Nucleus>() {
+            @Override
+            public Nucleus get(int row) {
+                return(new Nucleus(NucleusTable.this, row));
+            }
+            
+            @Override
+            public int size() {
+                return(objects.length);
+            }
+        });
+    }
+}
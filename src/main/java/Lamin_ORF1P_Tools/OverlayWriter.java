@@ -0,0 +1,186 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import loci.common.DataTools;
+import loci.common.services.ServiceFactory;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.TiffWriter;
+import loci.formats.services.OMEXMLService;
+import mcib3d.geom2.BoundingBox;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.VoxelInt;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import ome.xml.model.primitives.Color;
+
+
+/**
+ * Write results images (cytoplasm mask, nuclei labels, ORF1P channel) as LZW-compressed 3-channel TIFF,
+ * optionally downsampled in XY, in a background thread
+ * Planes are written one by one straight from the mask and ORF1P stacks, nuclei labels are drawn plane by plane,
+ * without merging them in a new hyperstack; channels are green, blue and gray as in a composite image
+ * At most maxPending images wait to be written, submit() blocks beyond that
+ * A failed write is thrown by the next submit() or by close(), so that the batch stops before more images are recorded as done
+ * @author phm
+ */
+public class OverlayWriter {
+
+    private final Tools tools;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Semaphore pending;
+    private volatile IOException failure;
+
+
+    public OverlayWriter(Tools tools, int maxPending) {
+        this.tools = tools;
+        this.pending = new Semaphore(Math.max(1, maxPending));
+    }
+
+
+    /**
+     * Write results image in background, imgCyto and img are closed once written
+     * imgCyto and img hold planes zOffset to zOffset+nSlices-1 of a sizeZ planes image, the other planes are left empty
+     */
+    public void submit(NucleusTable nuclei, ImagePlus imgCyto, ImagePlus img, int zOffset, int sizeZ, String imgName, String outDir) throws IOException, InterruptedException {
+        checkFailure();
+        pending.acquire();
+        executor.submit(() -> {
+            tools.report.setImage(imgName);
+            try (RunReport.Stage stage = tools.report.stage("overlayWrite")) {
+                write(nuclei, imgCyto, img, zOffset, sizeZ, imgName, outDir);
+            } catch (Exception ex) {
+                System.out.println("Cannot save results image of " + imgName + ": " + ex.getMessage());
+                new File(outDir + imgName + ".tif").delete();
+                if (failure == null)
+                    failure = new IOException("Cannot save results image of " + imgName + ": " + ex.getMessage(), ex);
+            } finally {
+                tools.flush_close(imgCyto);
+                tools.flush_close(img);
+                pending.release();
+            }
+        });
+    }
+
+
+    /**
+     * Wait for all results images to be written, throw the first failed write
+     */
+    public void close() throws IOException, InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        checkFailure();
+    }
+    
+    
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw failure;
+    }
+
+
+    /**
+     * Write results image in the calling thread
+     */
+    public void write(NucleusTable nuclei, ImagePlus imgCyto, ImagePlus img, String imgName, String outDir) throws Exception {
+        write(nuclei, imgCyto, img, 0, img.getNSlices(), imgName, outDir);
+    }
+    
+    
+    /**
+     * Write results image of a z-cropped stack in the calling thread
+     */
+    public void write(NucleusTable nuclei, ImagePlus imgCyto, ImagePlus img, int zOffset, int sizeZ, String imgName, String outDir) throws Exception {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int depth = sizeZ;
+        int croppedDepth = img.getNSlices();
+        int bin = Math.max(1, tools.overlayDownsample);
+        int outWidth = width/bin;
+        int outHeight = height/bin;
+
+        // Metadata
+        Calibration cal = tools.cal;
+        ServiceFactory factory = new ServiceFactory();
+        IMetadata meta = factory.getInstance(OMEXMLService.class).createOMEXMLMetadata();
+        MetadataTools.populateMetadata(meta, 0, imgName, false, "XYCZT", "uint16", outWidth, outHeight, depth, 3, 1, 1);
+        meta.setPixelsPhysicalSizeX(new Length(cal.pixelWidth*bin, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeY(new Length(cal.pixelHeight*bin, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeZ(new Length(cal.pixelDepth, UNITS.MICROMETER), 0);
+        meta.setChannelName("cytoplasm", 0, 0);
+        meta.setChannelColor(new Color(0, 255, 0, 255), 0, 0);
+        meta.setChannelName("nuclei", 0, 1);
+        meta.setChannelColor(new Color(0, 0, 255, 255), 0, 1);
+        meta.setChannelName("ORF1P", 0, 2);
+        meta.setChannelColor(new Color(255, 255, 255, 255), 0, 2);
+
+        TiffWriter writer = new TiffWriter();
+        writer.setMetadataRetrieve(meta);
+        writer.setCompression(TiffWriter.COMPRESSION_LZW);
+        writer.setBigTiff(2L*outWidth*outHeight*depth*3 > Integer.MAX_VALUE);
+        writer.setWriteSequentially(true);
+        writer.setId(outDir + imgName + ".tif");
+        try {
+            ImageStack cytoStack = imgCyto.getStack();
+            ImageStack imgStack = img.getStack();
+            short[] plane = new short[outWidth*outHeight];
+            short[] empty = new short[width*height];
+            short[] labels = new short[width*height];
+            for (int z = 0; z < depth; z++) {
+                boolean analyzed = z >= zOffset && z < zOffset + croppedDepth;
+                drawLabels(nuclei, z, labels, width);
+                Object[] channels = {analyzed ? cytoStack.getPixels(z-zOffset+1) : empty, labels,
+                    analyzed ? imgStack.getPixels(z-zOffset+1) : empty};
+                for (int c = 0; c < channels.length; c++) {
+                    sample(channels[c], width, bin, plane, outWidth, outHeight);
+                    writer.saveBytes(z*channels.length + c, DataTools.shortsToBytes(plane, false));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+    
+    /**
+     * Draw the labels of the nuclei in plane z
+     */
+    private static void drawLabels(NucleusTable nuclei, int z, short[] labels, int width) {
+        Arrays.fill(labels, (short) 0);
+        for (int row = 0; row < nuclei.size(); row++) {
+            Object3DInt nucleus = nuclei.object(row);
+            BoundingBox box = nucleus.getBoundingBox();
+            if (z < box.zmin || z > box.zmax)
+                continue;
+            short label = (short) nucleus.getLabel();
+            for (Object3DPlane plane : nucleus.getObject3DPlanes())
+                if (plane.getZPlane() == z)
+                    for (VoxelInt voxel : plane.getVoxels())
+                        labels[voxel.getY()*width + voxel.getX()] = label;
+        }
+    }
+
+
+    /**
+     * Copy one pixel every bin pixels of an 8 or 16-bit plane to a 16-bit plane
+     */
+    private static void sample(Object pixels, int width, int bin, short[] out, int outWidth, int outHeight) {
+        for (int y = 0; y < outHeight; y++) {
+            int offset = y*bin*width;
+            for (int x = 0; x < outWidth; x++) {
+                int i = offset + x*bin;
+                out[y*outWidth + x] = (pixels instanceof byte[]) ? (short) (((byte[]) pixels)[i] & 0xff) : ((short[]) pixels)[i];
+            }
+        }
+    }
+}
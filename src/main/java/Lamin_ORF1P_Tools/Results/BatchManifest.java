@@ -0,0 +1,132 @@
+package Lamin_ORF1P_Tools.Results;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Manifest of the images already analyzed in a Results folder (manifest.tsv),
+ * so that an interrupted batch can be resumed:
+ * one row per finished image with its path, size, last modification time, the hash of the settings
+ * and where its nuclei rows are stored in the detailed results (first row and nb rows)
+ * An image is finished if it has not changed since it was analyzed with the same settings
+ * @author phm
+ */
+public class BatchManifest {
+    
+    public static final String FILE_NAME = "manifest.tsv";
+    private static final String HEADER = "Image file\tSize\tLast modified\tSettings hash\tFirst row\tNb rows";
+    
+    private final File file;
+    private final String settingsHash;
+    private final LinkedHashMap<String, String[]> finished = new LinkedHashMap<>();
+    private FileOutputStream out;
+    private BufferedWriter writer;
+    private long nextRow = 0;
+    
+    
+    /**
+     * Read the manifest of outDir, keeping only the images that are still finished for these settings
+     */
+    public BatchManifest(String outDir, String settingsHash) throws IOException {
+        this.file = new File(outDir, FILE_NAME);
+        this.settingsHash = settingsHash;
+        if (!file.exists())
+            return;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] cols = line.split("\t");
+                if (cols.length != 6 || line.equals(HEADER))
+                    continue;
+                if (!cols[3].equals(settingsHash)) {
+                    System.out.println("Settings changed since last run, all images will be analyzed again");
+                    finished.clear();
+                    return;
+                }
+                File image = new File(cols[0]);
+                if (image.length() == Long.parseLong(cols[1]) && image.lastModified() == Long.parseLong(cols[2]))
+                    finished.put(cols[0], cols);
+            }
+        }
+    }
+    
+    
+    /**
+     * Images of the list that still need to be analyzed
+     */
+    public ArrayList<String> pending(List<String> imageFiles) {
+        ArrayList<String> pending = new ArrayList<>();
+        for (String f : imageFiles)
+            if (!finished.containsKey(f))
+                pending.add(f);
+        return(pending);
+    }
+    
+    
+    /**
+     * Root names of the finished images, whose rows are kept in results files
+     */
+    public Set<String> finishedNames() {
+        Set<String> names = new HashSet<>();
+        for (String f : finished.keySet())
+            names.add(FilenameUtils.getBaseName(f));
+        return(names);
+    }
+    
+    
+    /**
+     * Rewrite the manifest with the finished images only, renumbering their rows
+     * as they are kept in results files, and open it to append new images
+     */
+    public void open() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        out = new FileOutputStream(tmp, false);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write(HEADER + "\n");
+        for (String[] cols : finished.values()) {
+            long nbRows = Long.parseLong(cols[5]);
+            writer.write(cols[0] + "\t" + cols[1] + "\t" + cols[2] + "\t" + cols[3] + "\t" + nextRow + "\t" + nbRows + "\n");
+            nextRow += nbRows;
+        }
+        sync();
+        writer.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = new FileOutputStream(file, true);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+    
+    
+    /**
+     * Record an analyzed image, durable at the next sync()
+     */
+    public void add(String imageFile, int nbRows) throws IOException {
+        File image = new File(imageFile);
+        writer.write(imageFile + "\t" + image.length() + "\t" + image.lastModified() + "\t" + settingsHash + "\t" + nextRow + "\t" + nbRows + "\n");
+        nextRow += nbRows;
+    }
+    
+    
+    public void sync() throws IOException {
+        writer.flush();
+        out.getFD().sync();
+    }
+    
+    
+    public void close() throws IOException {
+        sync();
+        writer.close();
+    }
+}
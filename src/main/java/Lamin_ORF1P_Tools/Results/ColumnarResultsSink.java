@@ -0,0 +1,190 @@
+package Lamin_ORF1P_Tools.Results;
+
+import Lamin_ORF1P_Tools.ImageResults;
+import Lamin_ORF1P_Tools.NucleusTable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+
+/**
+ * Nuclei parameters in a binary columnar file detailed_results.bin, little-endian:
+ *   header: magic "LORF1PC1", int32 nb columns, then per column int32 type (0 = int32, 1 = float64),
+ *           int32 name length and UTF-8 name, padded to 8 bytes
+ *   one block per image: int32 nb rows, 4 bytes padding, then each column contiguous, padded to 8 bytes
+ * detailed_results_index.xls gives image name, first row, nb rows and byte offset of each block
+ * Text detailed_results.xls and global_results.xls are still written alongside
+ * If keep is given, the blocks of these images are kept from existing files and new blocks are appended
+ * @author phm
+ */
+public class ColumnarResultsSink implements ResultsSink {
+    
+    public static final byte[] MAGIC = "LORF1PC1".getBytes(StandardCharsets.US_ASCII);
+    public static final int INT32 = 0, FLOAT64 = 1;
+    
+    private final FileOutputStream binOut, indexOut;
+    private final FileChannel bin;
+    private final BufferedWriter index;
+    private final TsvResultsSink tsv;
+    private final int[] types = new int[NucleusTable.COLUMNS.length];
+    private ByteBuffer block = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private long rows = 0;
+    private final int checkpointImages;
+    private final long checkpointMillis;
+    private int imagesSinceCheckpoint = 0;
+    private long lastCheckpoint = System.currentTimeMillis();
+    
+    
+    public ColumnarResultsSink(String outDir, Set<String> keep, int checkpointImages, long checkpointMillis) throws IOException {
+        this.checkpointImages = checkpointImages;
+        this.checkpointMillis = checkpointMillis;
+        for (int c = 0; c < types.length; c++)
+            types[c] = NucleusTable.COLUMNS[c].integer ? INT32 : FLOAT64;
+        
+        File binFile = new File(outDir + "detailed_results.bin");
+        File indexFile = new File(outDir + "detailed_results_index.xls");
+        File binTmp = new File(binFile.getPath() + ".tmp");
+        File indexTmp = new File(indexFile.getPath() + ".tmp");
+        try (FileOutputStream binTmpOut = new FileOutputStream(binTmp, false);
+                FileOutputStream indexTmpOut = new FileOutputStream(indexTmp, false);
+                BufferedWriter indexTmpWriter = new BufferedWriter(new OutputStreamWriter(indexTmpOut, StandardCharsets.UTF_8))) {
+            FileChannel binTmpCh = binTmpOut.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(types.length);
+            for (int c = 0; c < types.length; c++) {
+                byte[] name = NucleusTable.COLUMNS[c].header.getBytes(StandardCharsets.UTF_8);
+                header.putInt(types[c]).putInt(name.length).put(name);
+            }
+            pad(header);
+            ((Buffer) header).flip();
+            binTmpCh.write(header);
+            indexTmpWriter.write("Image name\tFirst row\tNb rows\tByte offset\n");
+            
+            // Copy the blocks of the kept images
+            if (keep != null && binFile.exists() && indexFile.exists()) {
+                try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8);
+                        FileChannel oldBin = FileChannel.open(binFile.toPath(), StandardOpenOption.READ)) {
+                    reader.readLine();
+                    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                        String[] cols = line.split("\t");
+                        if (cols.length != 4 || !keep.contains(cols[0]))
+                            continue;
+                        int nbRows = Integer.parseInt(cols[2]);
+                        long offset = Long.parseLong(cols[3]);
+                        long size = blockSize(nbRows);
+                        if (offset + size > oldBin.size())
+                            continue;
+                        indexTmpWriter.write(cols[0] + "\t" + rows + "\t" + nbRows + "\t" + binTmpCh.position() + "\n");
+                        for (long copied = 0; copied < size; )
+                            copied += oldBin.transferTo(offset + copied, size - copied, binTmpCh);
+                        rows += nbRows;
+                    }
+                }
+            }
+            indexTmpWriter.flush();
+            binTmpCh.force(false);
+            indexTmpOut.getFD().sync();
+        }
+        Files.move(binTmp.toPath(), binFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(indexTmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        binOut = new FileOutputStream(binFile, true);
+        bin = binOut.getChannel();
+        indexOut = new FileOutputStream(indexFile, true);
+        index = new BufferedWriter(new OutputStreamWriter(indexOut, StandardCharsets.UTF_8), 1 << 16);
+        
+        // Checkpoints of text results are driven by this sink
+        tsv = new TsvResultsSink(outDir, true, keep, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+    
+    
+    /**
+     * Size in bytes of the block of an image with nbRows nuclei
+     */
+    private long blockSize(int nbRows) {
+        return(blockSize(types, nbRows));
+    }
+    
+    
+    /**
+     * Size in bytes of a block of nbRows rows with columns of the given types
+     */
+    static long blockSize(int[] types, int nbRows) {
+        long size = 8;
+        for (int type : types)
+            size += ((type == INT32 ? 4L : 8L)*nbRows + 7)/8*8;
+        return(size);
+    }
+    
+    
+    private static void pad(ByteBuffer buf) {
+        while (buf.position() % 8 != 0)
+            buf.put((byte) 0);
+    }
+    
+    
+    @Override
+    public void write(ImageResults results) throws IOException {
+        int nbRows = results.nuclei.size();
+        int size = 8 + types.length*(8*nbRows + 8);
+        if (block.capacity() < size)
+            block = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer) block).clear();
+        block.putInt(nbRows).putInt(0);
+        for (int c = 0; c < types.length; c++) {
+            double[] column = results.nuclei.column(NucleusTable.COLUMNS[c]);
+            if (types[c] == INT32) {
+                for (int r = 0; r < nbRows; r++)
+                    block.putInt((int) column[r]);
+            } else {
+                block.asDoubleBuffer().put(column, 0, nbRows);
+                ((Buffer) block).position(block.position() + 8*nbRows);
+            }
+            pad(block);
+        }
+        ((Buffer) block).flip();
+        long offset = bin.position();
+        while (block.hasRemaining())
+            bin.write(block);
+        
+        index.write(results.rootName + "\t" + rows + "\t" + nbRows + "\t" + offset + "\n");
+        rows += nbRows;
+        tsv.write(results);
+        
+        imagesSinceCheckpoint++;
+        if (imagesSinceCheckpoint >= checkpointImages || System.currentTimeMillis() - lastCheckpoint >= checkpointMillis)
+            checkpoint();
+    }
+    
+    
+    @Override
+    public void checkpoint() throws IOException {
+        index.flush();
+        bin.force(false);
+        indexOut.getFD().sync();
+        tsv.checkpoint();
+        imagesSinceCheckpoint = 0;
+        lastCheckpoint = System.currentTimeMillis();
+    }
+    
+    
+    @Override
+    public void close() throws IOException {
+        checkpoint();
+        index.close();
+        binOut.close();
+        tsv.close();
+    }
+}
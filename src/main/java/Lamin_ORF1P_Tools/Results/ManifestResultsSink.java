@@ -0,0 +1,56 @@
+package Lamin_ORF1P_Tools.Results;
+
+import Lamin_ORF1P_Tools.ImageResults;
+import java.io.IOException;
+
+
+/**
+ * Results sink recording each written image in the batch manifest
+ * The manifest is synced only after the results files, so that an image listed in it
+ * always has its rows on disk; rows of unlisted images are dropped on resume
+ * @author phm
+ */
+public class ManifestResultsSink implements ResultsSink {
+    
+    private final ResultsSink sink;
+    private final BatchManifest manifest;
+    private final int checkpointImages;
+    private final long checkpointMillis;
+    private int imagesSinceCheckpoint = 0;
+    private long lastCheckpoint = System.currentTimeMillis();
+    
+    
+    public ManifestResultsSink(ResultsSink sink, BatchManifest manifest, int checkpointImages, long checkpointMillis) throws IOException {
+        this.sink = sink;
+        this.manifest = manifest;
+        this.checkpointImages = checkpointImages;
+        this.checkpointMillis = checkpointMillis;
+        manifest.open();
+    }
+    
+    
+    @Override
+    public void write(ImageResults results) throws IOException {
+        sink.write(results);
+        manifest.add(results.imageFile, results.nuclei.size());
+        imagesSinceCheckpoint++;
+        if (imagesSinceCheckpoint >= checkpointImages || System.currentTimeMillis() - lastCheckpoint >= checkpointMillis)
+            checkpoint();
+    }
+    
+    
+    @Override
+    public void checkpoint() throws IOException {
+        sink.checkpoint();
+        manifest.sync();
+        imagesSinceCheckpoint = 0;
+        lastCheckpoint = System.currentTimeMillis();
+    }
+    
+    
+    @Override
+    public void close() throws IOException {
+        sink.close();
+        manifest.close();
+    }
+}
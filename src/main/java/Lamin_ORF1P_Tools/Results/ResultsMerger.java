@@ -0,0 +1,196 @@
+package Lamin_ORF1P_Tools.Results;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+
+/**
+ * Merge results folders of several shards of a batch into one results folder,
+ * in the order of the shards: text results and manifest are concatenated under one header,
+ * columnar blocks are copied with their rows and byte offsets renumbered
+ * @author phm
+ */
+public class ResultsMerger {
+    
+    public static void merge(List<File> shardDirs, File outDir) throws IOException {
+        outDir.mkdirs();
+        concatenate(shardDirs, outDir, "global_results.xls");
+        concatenate(shardDirs, outDir, "detailed_results.xls");
+        mergeManifests(shardDirs, outDir);
+        mergeColumnar(shardDirs, outDir);
+    }
+    
+    
+    /**
+     * Concatenate text files with the same header, if present in shards
+     */
+    private static void concatenate(List<File> shardDirs, File outDir, String name) throws IOException {
+        BufferedWriter writer = null;
+        try {
+            for (File dir : shardDirs) {
+                File file = new File(dir, name);
+                if (!file.exists())
+                    continue;
+                try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                    String header = reader.readLine();
+                    if (header == null)
+                        continue;
+                    if (writer == null) {
+                        writer = Files.newBufferedWriter(new File(outDir, name).toPath(), StandardCharsets.UTF_8);
+                        writer.write(header + "\n");
+                    }
+                    for (String line = reader.readLine(); line != null; line = reader.readLine())
+                        writer.write(line + "\n");
+                }
+            }
+        } finally {
+            if (writer != null)
+                writer.close();
+        }
+    }
+    
+    
+    /**
+     * Concatenate manifests, numbering rows as in the merged detailed results, empty manifests are skipped
+     */
+    private static void mergeManifests(List<File> shardDirs, File outDir) throws IOException {
+        long nextRow = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(new File(outDir, BatchManifest.FILE_NAME).toPath(), StandardCharsets.UTF_8)) {
+            boolean header = false;
+            for (File dir : shardDirs) {
+                File file = new File(dir, BatchManifest.FILE_NAME);
+                if (!file.exists())
+                    continue;
+                try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                    String line = reader.readLine();
+                    if (line == null)
+                        continue;
+                    if (!header) {
+                        writer.write(line + "\n");
+                        header = true;
+                    }
+                    for (line = reader.readLine(); line != null; line = reader.readLine()) {
+                        String[] cols = line.split("\t");
+                        if (cols.length != 6)
+                            continue;
+                        cols[4] = String.valueOf(nextRow);
+                        nextRow += Long.parseLong(cols[5]);
+                        writer.write(String.join("\t", cols) + "\n");
+                    }
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Merge columnar nuclei results: header of the first shard, then the blocks of each shard in index order,
+     * up to the first block that does not match its index entry or is cut short (shard interrupted while writing)
+     */
+    private static void mergeColumnar(List<File> shardDirs, File outDir) throws IOException {
+        FileOutputStream binOut = null;
+        BufferedWriter index = null;
+        long rows = 0;
+        try {
+            for (File dir : shardDirs) {
+                File binFile = new File(dir, "detailed_results.bin");
+                File indexFile = new File(dir, "detailed_results_index.xls");
+                if (!binFile.exists() || !indexFile.exists())
+                    continue;
+                try (FileChannel in = FileChannel.open(binFile.toPath(), StandardOpenOption.READ);
+                        BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                    String header = reader.readLine();
+                    if (header == null || in.size() == 0)
+                        continue;
+                    ColumnsHeader columns = readHeader(in);
+                    if (binOut == null) {
+                        binOut = new FileOutputStream(new File(outDir, "detailed_results.bin"), false);
+                        in.transferTo(0, columns.size, binOut.getChannel());
+                        index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir, "detailed_results_index.xls"), false), StandardCharsets.UTF_8));
+                        index.write(header + "\n");
+                    }
+                    FileChannel out = binOut.getChannel();
+                    for (String[] cols = nextEntry(reader); cols != null; cols = nextEntry(reader)) {
+                        int nbRows = Integer.parseInt(cols[2]);
+                        long offset = Long.parseLong(cols[3]);
+                        long size = ColumnarResultsSink.blockSize(columns.types, nbRows);
+                        if (offset + size > in.size() || blockRows(in, offset) != nbRows)
+                            break;
+                        index.write(cols[0] + "\t" + rows + "\t" + nbRows + "\t" + out.position() + "\n");
+                        for (long copied = 0; copied < size; )
+                            copied += in.transferTo(offset + copied, size - copied, out);
+                        rows += nbRows;
+                    }
+                }
+            }
+        } finally {
+            if (index != null)
+                index.close();
+            if (binOut != null)
+                binOut.close();
+        }
+    }
+    
+    
+    private static String[] nextEntry(BufferedReader reader) throws IOException {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            String[] cols = line.split("\t");
+            if (cols.length == 4)
+                return(cols);
+        }
+        return(null);
+    }
+    
+    
+    /**
+     * Size and column types of the header of a columnar results file
+     */
+    private static class ColumnsHeader {
+        long size;
+        int[] types;
+    }
+    
+    
+    /**
+     * Read the header of a columnar results file, up to the first block
+     */
+    private static ColumnsHeader readHeader(FileChannel in) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        in.read(buf, 0);
+        ((Buffer) buf).flip();
+        ((Buffer) buf).position(ColumnarResultsSink.MAGIC.length);
+        ColumnsHeader header = new ColumnsHeader();
+        header.types = new int[buf.getInt()];
+        for (int c = 0; c < header.types.length; c++) {
+            header.types[c] = buf.getInt();
+            int nameLength = buf.getInt();
+            ((Buffer) buf).position(buf.position() + nameLength);
+        }
+        header.size = (buf.position() + 7)/8*8;
+        return(header);
+    }
+    
+    
+    /**
+     * Number of rows written at the start of the block at offset
+     */
+    private static int blockRows(FileChannel in, long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining())
+            if (in.read(buf, offset + buf.position()) < 0)
+                return(-1);
+        return(buf.getInt(0));
+    }
+}
@@ -0,0 +1,34 @@
+package Lamin_ORF1P_Tools.Results;
+
+import Lamin_ORF1P_Tools.ImageResults;
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/**
+ * Destination of the nuclei and global parameters of the analyzed images
+ * Sinks may buffer results: they are durable only after checkpoint() or close()
+ * @author phm
+ */
+public interface ResultsSink extends Closeable {
+    
+    /**
+     * Nuclei parameters columns are those of NucleusTable
+     * Global parameters columns: keys in global params and file headers
+     */
+    String[] GLOBAL_KEYS = {"nucNb", "nucVol", "bgLamin", "nucLaminIntSum", "bgORF1P", "nucORF1PIntSum", "cytoORF1PVol", "cytoORF1PInt"};
+    String[] GLOBAL_HEADERS = {"Nb nuclei", "Nuclei total volume (µm3)", "Lamin background", "Nuclei bg corr. total intensity in lamin channel",
+            "ORF1P background", "Nuclei bg corr. total intensity in ORF1P channel", "ORF1P cytoplasm total volume (µm3)", "ORF1P cytoplasm bg corr. total intensity"};
+    
+    
+    /**
+     * Write nuclei and global parameters of one image
+     */
+    void write(ImageResults results) throws IOException;
+    
+    
+    /**
+     * Make all results written so far durable on disk
+     */
+    void checkpoint() throws IOException;
+}
@@ -0,0 +1,145 @@
+package Lamin_ORF1P_Tools.Results;
+
+import Lamin_ORF1P_Tools.ImageResults;
+import Lamin_ORF1P_Tools.NucleusTable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+
+
+/**
+ * Tab-separated detailed_results.xls and global_results.xls files
+ * (global_results.xls only if withDetailed is false)
+ * If keep is given, the rows of these images are kept from existing files and new rows are appended,
+ * otherwise files are started over
+ * Rows are buffered and flushed to disk at checkpoints,
+ * every checkpointImages images or checkpointMillis ms, whichever comes first
+ * @author phm
+ */
+public class TsvResultsSink implements ResultsSink {
+    
+    private final FileOutputStream detailedOut, globalOut;
+    private final BufferedWriter detailed, global;
+    private final int checkpointImages;
+    private final long checkpointMillis;
+    private int imagesSinceCheckpoint = 0;
+    private long lastCheckpoint = System.currentTimeMillis();
+    
+    
+    public TsvResultsSink(String outDir, boolean withDetailed, Set<String> keep, int checkpointImages, long checkpointMillis) throws IOException {
+        this.checkpointImages = checkpointImages;
+        this.checkpointMillis = checkpointMillis;
+        
+        if (withDetailed) {
+            String[] headers = new String[NucleusTable.COLUMNS.length];
+            for (int c = 0; c < headers.length; c++)
+                headers[c] = NucleusTable.COLUMNS[c].header;
+            detailedOut = open(new File(outDir + "detailed_results.xls"), header(headers), keep);
+            detailed = new BufferedWriter(new OutputStreamWriter(detailedOut, StandardCharsets.UTF_8), 1 << 20);
+        } else {
+            detailedOut = null;
+            detailed = null;
+        }
+        
+        globalOut = open(new File(outDir + "global_results.xls"), header(GLOBAL_HEADERS), keep);
+        global = new BufferedWriter(new OutputStreamWriter(globalOut, StandardCharsets.UTF_8), 1 << 16);
+        checkpoint();
+    }
+    
+    
+    private static String header(String[] headers) {
+        return("Image name\t" + String.join("\t", headers) + "\n");
+    }
+    
+    
+    /**
+     * Write header and the rows of the kept images (from the existing file) in a new file,
+     * replace the existing file with it and open it in append mode
+     */
+    private static FileOutputStream open(File file, String header, Set<String> keep) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp, false);
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 20)) {
+            writer.write(header);
+            if (keep != null && file.exists()) {
+                try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                    reader.readLine();
+                    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                        int tab = line.indexOf('\t');
+                        if (tab > 0 && keep.contains(line.substring(0, tab)))
+                            writer.write(line + "\n");
+                    }
+                }
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return(new FileOutputStream(file, true));
+    }
+    
+    
+    @Override
+    public void write(ImageResults results) throws IOException {
+        StringBuilder row = new StringBuilder(256);
+        if (detailed != null) {
+            NucleusTable nuclei = results.nuclei;
+            double[][] columns = new double[NucleusTable.COLUMNS.length][];
+            for (int c = 0; c < columns.length; c++)
+                columns[c] = nuclei.column(NucleusTable.COLUMNS[c]);
+            for (int r = 0; r < nuclei.size(); r++) {
+                row.setLength(0);
+                row.append(results.rootName);
+                for (double[] column : columns)
+                    row.append('\t').append(column[r]);
+                row.append('\n');
+                detailed.append(row);
+            }
+        }
+        
+        row.setLength(0);
+        row.append(results.rootName);
+        for (String key : GLOBAL_KEYS) {
+            row.append('\t');
+            if (key.equals("nucNb"))
+                row.append(results.globalParams.get(key).intValue());
+            else
+                row.append(results.globalParams.get(key).doubleValue());
+        }
+        row.append('\n');
+        global.append(row);
+        
+        imagesSinceCheckpoint++;
+        if (imagesSinceCheckpoint >= checkpointImages || System.currentTimeMillis() - lastCheckpoint >= checkpointMillis)
+            checkpoint();
+    }
+    
+    
+    @Override
+    public void checkpoint() throws IOException {
+        if (detailed != null) {
+            detailed.flush();
+            detailedOut.getFD().sync();
+        }
+        global.flush();
+        globalOut.getFD().sync();
+        imagesSinceCheckpoint = 0;
+        lastCheckpoint = System.currentTimeMillis();
+    }
+    
+    
+    @Override
+    public void close() throws IOException {
+        checkpoint();
+        if (detailed != null)
+            detailed.close();
+        global.close();
+    }
+}
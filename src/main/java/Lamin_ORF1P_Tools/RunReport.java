@@ -0,0 +1,289 @@
+package Lamin_ORF1P_Tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+
+/**
+ * Timing and resources of each analysis stage of each image:
+ * wall time, CPU time and bytes allocated by the thread running the stage (thread fields, which miss the work
+ * done by parallel streams or background threads of the stage), CPU time of the whole Java process during the stage
+ * (process field, which includes the other images and writers running meanwhile, but not the Cellpose processes),
+ * peak heap used while the image was processed, and object counts
+ * Stages are recorded for the current image of the thread, set with setImage(),
+ * they may be nested (cellpose is part of nuclei, cytoGaussian of cytoplasm...)
+ * The heap only grows between garbage collections, so its peak is the heap used before each collection
+ * or at the end of the last stage; it is the peak of the whole Java process, other images included
+ * The report is written as JSON at the end of the run, listeners receive stages as they end
+ * @author phm
+ */
+public class RunReport {
+    
+    /**
+     * Measures of one stage, summed if the stage runs several times for the same image
+     */
+    public static class StageStats {
+        public long count, wallNs, threadCpuNs, threadAllocatedBytes, processCpuNs;
+    }
+    
+    public static class ImageReport {
+        public final String name;
+        public final Map<String, StageStats> stages = new LinkedHashMap<>();
+        public final Map<String, Long> counts = new LinkedHashMap<>();
+        public long peakHeapBytes;
+        
+        ImageReport(String name) {
+            this.name = name;
+        }
+    }
+    
+    public interface Listener {
+        void stageEnded(String image, String stage, long wallNs, long threadCpuNs, long threadAllocatedBytes, long processCpuNs, long heapBytes);
+    }
+    
+    /**
+     * Running stage, ended by close()
+     */
+    public final class Stage implements AutoCloseable {
+        private final String image, name;
+        private final long wall0, cpu0, alloc0, processCpu0;
+        
+        private Stage(String image, String name) {
+            this.image = image;
+            this.name = name;
+            wall0 = System.nanoTime();
+            cpu0 = cpuTime();
+            alloc0 = allocatedBytes();
+            processCpu0 = processCpuTime();
+        }
+        
+        @Override
+        public void close() {
+            long wall = System.nanoTime() - wall0;
+            long cpu = cpuTime() - cpu0;
+            long alloc = allocatedBytes() - alloc0;
+            long processCpu = processCpuTime() - processCpu0;
+            Runtime rt = Runtime.getRuntime();
+            long heap = rt.totalMemory() - rt.freeMemory();
+            synchronized (RunReport.this) {
+                ImageReport report = imageReport(image);
+                StageStats stats = report.stages.computeIfAbsent(name, k -> new StageStats());
+                stats.count++;
+                stats.wallNs += wall;
+                stats.threadCpuNs += cpu;
+                stats.threadAllocatedBytes += alloc;
+                stats.processCpuNs += processCpu;
+                raisePeakHeap(report, heap);
+            }
+            for (Listener listener : listeners)
+                listener.stageEnded(image, name, wall, cpu, alloc, processCpu, heap);
+        }
+    }
+    
+    private final boolean enabled;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final ThreadLocal<String> currentImage = new ThreadLocal<>();
+    private final LinkedHashMap<String, ImageReport> images = new LinkedHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final long start = System.currentTimeMillis();
+    // Current image of each thread, whose peak heap is raised at each garbage collection
+    private final Map<Thread, String> activeImages = new ConcurrentHashMap<>();
+    private final Set<String> heapPools = new HashSet<>();
+    private final NotificationListener gcListener = this::garbageCollected;
+    
+    
+    public RunReport(boolean enabled) {
+        this.enabled = enabled;
+        if (enabled && threads.isThreadCpuTimeSupported())
+            threads.setThreadCpuTimeEnabled(true);
+        if (enabled) {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+                if (pool.getType() == MemoryType.HEAP)
+                    heapPools.add(pool.getName());
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+                if (gc instanceof NotificationEmitter)
+                    ((NotificationEmitter) gc).addNotificationListener(gcListener, null, null);
+        }
+    }
+    
+    
+    /**
+     * Set the image the calling thread is working on
+     */
+    public void setImage(String image) {
+        currentImage.set(image);
+        if (enabled) {
+            if (image == null)
+                activeImages.remove(Thread.currentThread());
+            else
+                activeImages.put(Thread.currentThread(), image);
+        }
+    }
+    
+    
+    /**
+     * Stop following garbage collections, at the end of the run
+     */
+    public void close() {
+        if (!enabled)
+            return;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            if (gc instanceof NotificationEmitter) {
+                try {
+                    ((NotificationEmitter) gc).removeNotificationListener(gcListener);
+                } catch (Exception e) {
+                    // Not registered
+                }
+            }
+        activeImages.clear();
+    }
+    
+    
+    /**
+     * Heap used before a garbage collection, peak of the heap since the previous one
+     */
+    private void garbageCollected(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+            return;
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        long heap = 0;
+        for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageBeforeGc().entrySet())
+            if (heapPools.contains(pool.getKey()))
+                heap += pool.getValue().getUsed();
+        synchronized (this) {
+            for (String image : new HashSet<>(activeImages.values()))
+                raisePeakHeap(imageReport(image), heap);
+        }
+    }
+    
+    
+    private void raisePeakHeap(ImageReport report, long heap) {
+        report.peakHeapBytes = Math.max(report.peakHeapBytes, heap);
+    }
+    
+    
+    /**
+     * Start a stage for the current image of the thread, to be used in try-with-resources
+     * Return null (accepted by try-with-resources) if the report is disabled
+     */
+    public Stage stage(String name) {
+        if (!enabled)
+            return(null);
+        String image = currentImage.get();
+        return(new Stage(image == null ? "" : image, name));
+    }
+    
+    
+    /**
+     * Record an object count for the current image of the thread
+     */
+    public void count(String name, long value) {
+        if (!enabled)
+            return;
+        String image = currentImage.get();
+        synchronized (this) {
+            imageReport(image == null ? "" : image).counts.put(name, value);
+        }
+    }
+    
+    
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    
+    public synchronized List<ImageReport> getImages() {
+        return(new ArrayList<>(images.values()));
+    }
+    
+    
+    private ImageReport imageReport(String image) {
+        return(images.computeIfAbsent(image, ImageReport::new));
+    }
+    
+    
+    private long cpuTime() {
+        return(threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0);
+    }
+    
+    
+    private long processCpuTime() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return(((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime());
+        return(0);
+    }
+    
+    
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return(((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId()));
+        return(0);
+    }
+    
+    
+    /**
+     * Write the report as JSON
+     */
+    public synchronized void write(File file) throws IOException {
+        if (!enabled)
+            return;
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("{\n  \"start\": " + start + ",\n  \"end\": " + System.currentTimeMillis()
+                    + ",\n  \"availableProcessors\": " + Runtime.getRuntime().availableProcessors()
+                    + ",\n  \"maxHeapBytes\": " + Runtime.getRuntime().maxMemory() + ",\n  \"images\": [");
+            String sep = "\n";
+            for (ImageReport report : images.values()) {
+                StringBuilder sb = new StringBuilder(sep).append("    {\"name\": ").append(quote(report.name))
+                        .append(", \"peakHeapBytes\": ").append(report.peakHeapBytes).append(", \"counts\": {");
+                String sep2 = "";
+                for (Map.Entry<String, Long> count : report.counts.entrySet()) {
+                    sb.append(sep2).append(quote(count.getKey())).append(": ").append(count.getValue());
+                    sep2 = ", ";
+                }
+                sb.append("}, \"stages\": {");
+                sep2 = "";
+                for (Map.Entry<String, StageStats> stage : report.stages.entrySet()) {
+                    StageStats s = stage.getValue();
+                    sb.append(sep2).append("\n      ").append(quote(stage.getKey())).append(": {\"count\": ").append(s.count)
+                            .append(", \"wallMs\": ").append(s.wallNs/1e6).append(", \"threadCpuMs\": ").append(s.threadCpuNs/1e6)
+                            .append(", \"threadAllocatedBytes\": ").append(s.threadAllocatedBytes)
+                            .append(", \"processCpuMs\": ").append(s.processCpuNs/1e6).append("}");
+                    sep2 = ",";
+                }
+                sb.append("}}");
+                writer.write(sb.toString());
+                sep = ",\n";
+            }
+            writer.write("\n  ]\n}\n");
+        }
+    }
+    
+    
+    private static String quote(String s) {
+        return("\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+    }
+}
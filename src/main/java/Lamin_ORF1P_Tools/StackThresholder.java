@@ -0,0 +1,101 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import java.util.stream.IntStream;
+
+
+/**
+ * Threshold an 8 or 16-bit stack into a 0/255 byte mask without going through IJ.run:
+ * the ImageJ 256-bin histogram is built from one slice or from the whole stack,
+ * the threshold is computed with any ImageJ method, then all slices are binarized in parallel
+ * @author phm
+ */
+public class StackThresholder {
+    
+    /**
+     * Threshold level (in image values) above which pixels are foreground,
+     * computed as IJ.setAutoThreshold(img, method + " dark") does from a histogram with one bin per value
+     */
+    public static double lowerThreshold(int[] hist, double min, double max, String method) {
+        int[] hist256 = new int[256];
+        double scale = 256.0/(max - min + 1);
+        for (int v = (int) min; v <= (int) max; v++) {
+            if (hist[v] == 0)
+                continue;
+            int bin = (hist.length == 256) ? v : (int) ((v - min)*scale + 0.5);
+            hist256[Math.min(255, bin)] += hist[v];
+        }
+        int threshold = new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(method), hist256);
+        double lower = Math.min(255, threshold + 1);
+        if (hist.length == 256)
+            return(lower);
+        return((max > min) ? min + (lower/255.0)*(max - min) : min);
+    }
+    
+    
+    /**
+     * Threshold level from the histogram of one slice (1-based)
+     */
+    public static double sliceThreshold(ImagePlus img, int slice, String method) {
+        Object pixels = img.getStack().getPixels(slice);
+        boolean bytes = pixels instanceof byte[];
+        int[] hist = new int[bytes ? 256 : 65536];
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        int n = bytes ? ((byte[]) pixels).length : ((short[]) pixels).length;
+        for (int i = 0; i < n; i++) {
+            int v = bytes ? ((byte[]) pixels)[i] & 0xff : ((short[]) pixels)[i] & 0xffff;
+            hist[v]++;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        if (bytes) {
+            min = 0;
+            max = 255;
+        }
+        return(lowerThreshold(hist, min, max, method));
+    }
+    
+    
+    /**
+     * Threshold level from the whole stack histogram of the channel statistics
+     */
+    public static double stackThreshold(ChannelStats stats, String method) {
+        boolean bytes = stats.histogram.length == 256;
+        return(lowerThreshold(stats.histogram, bytes ? 0 : stats.min, bytes ? 255 : stats.max, method));
+    }
+    
+    
+    /**
+     * Binarize all slices: 255 where value >= lower, 0 elsewhere
+     */
+    public static ImagePlus toMask(ImagePlus img, double lower) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        ImageStack stack = img.getStack();
+        byte[][] masks = new byte[stack.getSize()][];
+        IntStream.range(0, stack.getSize()).parallel().forEach(z -> {
+            Object pixels = stack.getPixels(z+1);
+            byte[] mask = new byte[width*height];
+            if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                for (int i = 0; i < mask.length; i++)
+                    mask[i] = ((p[i] & 0xff) >= lower) ? (byte) 255 : 0;
+            } else {
+                short[] p = (short[]) pixels;
+                for (int i = 0; i < mask.length; i++)
+                    mask[i] = ((p[i] & 0xffff) >= lower) ? (byte) 255 : 0;
+            }
+            masks[z] = mask;
+        });
+        ImageStack maskStack = new ImageStack(width, height);
+        for (byte[] mask : masks)
+            maskStack.addSlice(new ByteProcessor(width, height, mask));
+        ImagePlus imgMask = new ImagePlus(img.getTitle() + "-mask", maskStack);
+        imgMask.setDimensions(1, maskStack.getSize(), 1);
+        imgMask.setCalibration(img.getCalibration());
+        return(imgMask);
+    }
+}
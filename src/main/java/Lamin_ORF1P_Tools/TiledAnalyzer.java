@@ -0,0 +1,405 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+import mcib3d.geom2.BoundingBox;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.image3d.ImageHandler;
+import mcib3d.image3d.ImageShort;
+import org.apache.commons.io.FilenameUtils;
+import org.scijava.util.ArrayUtils;
+
+
+/**
+ * Analysis of large fields tile by tile, so that memory depends on the tile size and not on the field size
+ * - a first pass over the tiles gives channel backgrounds (median of min projections) and the cytoplasm threshold
+ *   (histogram of the Gaussian-filtered ORF1P channel, filtered with the tile halo so that core values are exact)
+ * - a second pass segments and measures nuclei and cytoplasm in each tile with its halo:
+ *   a nucleus belongs to the tile whose core contains its bounding box center,
+ *   nuclei found in two tiles across a border (overlapping by more than minOverlap of the smaller one)
+ *   are merged by keeping the larger one, cytoplasm is measured in tile cores
+ * The halo must be larger than the nuclei radius and than the cytoplasm filters extent (Gaussian 3 sigma + median radius),
+ * it may be larger than the tile size: a nucleus is compared with the nuclei of all the tiles whose halo reaches it
+ * Results images are saved tile by tile, through the overlay writer if one is given
+ * @author phm
+ */
+public class TiledAnalyzer {
+    
+    private static final double MIN_OVERLAP = 0.1;
+    
+    private final Tools tools;
+    private final OverlayWriter overlayWriter;
+    private final int tileSize, halo;
+    NucleusDetector detector;
+    
+    
+    /**
+     * Nuclei segmentation of a tile
+     */
+    interface NucleusDetector {
+        NucleusTable detect(ImagePlus img) throws IOException;
+    }
+    
+    
+    /**
+     * Nucleus kept from a previous tile that can be found again by the next tiles:
+     * last tile whose halo reaches it, row in results, global bounding box and voxels in it
+     */
+    private static class BorderNucleus {
+        int lastTileX, lastTileY, row;
+        int x0, y0, z0, w, h, d;
+        BitSet voxels;
+        int nbVoxels;
+        
+        boolean intersects(BorderNucleus o) {
+            return x0 < o.x0 + o.w && o.x0 < x0 + w && y0 < o.y0 + o.h && o.y0 < y0 + h && z0 < o.z0 + o.d && o.z0 < z0 + d;
+        }
+        
+        boolean contains(int x, int y, int z) {
+            return voxels.get(((z - z0)*h + (y - y0))*w + (x - x0));
+        }
+        
+        /**
+         * Overlapping voxels over the voxels of the smaller nucleus
+         */
+        double overlap(BorderNucleus o) {
+            int count = 0;
+            for (int z = Math.max(z0, o.z0); z < Math.min(z0 + d, o.z0 + o.d); z++)
+                for (int y = Math.max(y0, o.y0); y < Math.min(y0 + h, o.y0 + o.h); y++)
+                    for (int x = Math.max(x0, o.x0); x < Math.min(x0 + w, o.x0 + o.w); x++)
+                        if (contains(x, y, z) && o.contains(x, y, z))
+                            count++;
+            return (double) count/Math.max(1, Math.min(nbVoxels, o.nbVoxels));
+        }
+    }
+    
+    
+    /**
+     * Histogram with one bin per value of 8 or 16-bit pixels
+     */
+    private static class Histogram {
+        int[] hist;
+        long count = 0;
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        
+        void add(int v) {
+            if (hist == null)
+                hist = new int[65536];
+            hist[v]++;
+            count++;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+    }
+    
+    
+    public TiledAnalyzer(Tools tools) {
+        this(tools, null);
+    }
+    
+    
+    /**
+     * Results images of tiles are submitted to overlayWriter, or written in the calling thread if it is null
+     */
+    public TiledAnalyzer(Tools tools, OverlayWriter overlayWriter) {
+        this.tools = tools;
+        this.overlayWriter = overlayWriter;
+        this.tileSize = tools.tileSize;
+        this.halo = tools.tileHalo;
+        this.detector = img -> tools.cellposeDetection(img, true, "cyto2", 100, 0.5, true);
+    }
+    
+    
+    /**
+     * Analyze one image tile by tile, results images are saved in outDir
+     */
+    public ImageResults analyze(String imageFile, String[] channels, String[] chs, String outDir) throws Exception {
+        ImageResults image = new ImageResults(FilenameUtils.getBaseName(imageFile), imageFile);
+        tools.report.setImage(image.rootName);
+        System.out.println("--- ANALYZING IMAGE " + image.rootName + " BY TILES ------");
+        
+        ImageProcessorReader reader = tools.createReader(imageFile);
+        try {
+            int width = reader.getSizeX();
+            int height = reader.getSizeY();
+            int nbTilesX = (width + tileSize - 1)/tileSize;
+            int nbTilesY = (height + tileSize - 1)/tileSize;
+            int chNucleus = ArrayUtils.indexOf(channels, chs[0]);
+            int chLamin = chs[1].equals("None") ? -1 : ArrayUtils.indexOf(channels, chs[1]);
+            int chORF1P = ArrayUtils.indexOf(channels, chs[2]);
+            System.out.println(nbTilesX + "x" + nbTilesY + " tiles of " + tileSize + " pixels, halo " + halo + " pixels");
+            
+            // First pass: backgrounds and cytoplasm threshold
+            Histogram orf1pMinProj = new Histogram(), laminMinProj = new Histogram(), filtered = new Histogram();
+            for (int ty = 0; ty < nbTilesY; ty++) {
+                for (int tx = 0; tx < nbTilesX; tx++) {
+                    try (RunReport.Stage stage = tools.report.stage("tileStats")) {
+                        Rectangle core = core(tx, ty, width, height);
+                        Rectangle tile = withHalo(core, width, height);
+                        Rectangle coreInTile = new Rectangle(core.x - tile.x, core.y - tile.y, core.width, core.height);
+
+                        ImagePlus imgORF1P = null, imgG = null, imgLamin = null;
+                        try {
+                            imgORF1P = tools.openChannel(reader, chORF1P, image.rootName + "-" + chs[2], tile);
+                            addMinProjection(imgORF1P, coreInTile, orf1pMinProj);
+                            imgG = tools.gaussian_filter(imgORF1P, Tools.CYTO_GAUSSIAN_SIGMA, Tools.CYTO_GAUSSIAN_SIGMA);
+                            int nbSlices = imgG.getNSlices();
+                            if (tools.cytoStackHistogram)
+                                addValues(imgG, coreInTile, 1, nbSlices, filtered);
+                            else
+                                addValues(imgG, coreInTile, Math.max(1, nbSlices/2), Math.max(1, nbSlices/2), filtered);
+
+                            if (chLamin >= 0) {
+                                imgLamin = tools.openChannel(reader, chLamin, image.rootName + "-" + chs[1], core);
+                                addMinProjection(imgLamin, new Rectangle(0, 0, core.width, core.height), laminMinProj);
+                            }
+                        } finally {
+                            close(imgG, imgORF1P, imgLamin);
+                        }
+                    }
+                }
+            }
+            double bgORF1P = ChannelStats.median(orf1pMinProj.hist, orf1pMinProj.count);
+            double bgLamin = (chLamin >= 0) ? ChannelStats.median(laminMinProj.hist, laminMinProj.count) : 0;
+            boolean bytes = reader.getPixelType() == FormatTools.UINT8;
+            double threshold = StackThresholder.lowerThreshold(bytes ? Arrays.copyOf(filtered.hist, 256) : filtered.hist,
+                    bytes ? 0 : filtered.min, bytes ? 255 : filtered.max, tools.cytoThMethod);
+            System.out.println("ORF1P background = " + bgORF1P + ", lamin background = " + bgLamin + ", cytoplasm threshold = " + threshold);
+            
+            // Second pass: nuclei and cytoplasm of each tile
+            ArrayList<double[]> rows = new ArrayList<>();
+            ArrayList<BorderNucleus> borderNuclei = new ArrayList<>();
+            double cytoVol = 0, cytoIntSum = 0;
+            for (int ty = 0; ty < nbTilesY; ty++) {
+                for (int tx = 0; tx < nbTilesX; tx++) {
+                    try (RunReport.Stage stage = tools.report.stage("tile")) {
+                        Rectangle core = core(tx, ty, width, height);
+                        Rectangle tile = withHalo(core, width, height);
+                        Rectangle coreInTile = new Rectangle(core.x - tile.x, core.y - tile.y, core.width, core.height);
+                        String tileName = image.rootName + "_tile_" + tx + "_" + ty;
+                        System.out.println("- Tile " + tx + "," + ty + " -");
+
+                        ImagePlus imgNucleus = null, imgORF1P = null, imgCyto = null, imgLamin = null;
+                        try {
+                            imgNucleus = tools.openChannel(reader, chNucleus, tileName + "-" + chs[0], tile);
+                            NucleusTable tileNuclei = detector.detect(imgNucleus);
+                            close(imgNucleus);
+                            imgNucleus = null;
+
+                            imgORF1P = tools.openChannel(reader, chORF1P, tileName + "-" + chs[2], tile);
+                            imgCyto = tools.cytoMask(tools.gaussian_filter(imgORF1P, Tools.CYTO_GAUSSIAN_SIGMA, Tools.CYTO_GAUSSIAN_SIGMA), threshold, tileNuclei);
+                            double[] cytoParams = tools.computeCytoParameters(imgCyto, imgORF1P, coreInTile);
+                            cytoVol += cytoParams[0];
+                            cytoIntSum += cytoParams[1];
+
+                            // Nuclei of this tile
+                            ArrayList<Object3DInt> owned = new ArrayList<>();
+                            for (int row = 0; row < tileNuclei.size(); row++) {
+                                BoundingBox box = tileNuclei.object(row).getBoundingBox();
+                                if (coreInTile.contains((box.xmin + box.xmax)/2, (box.ymin + box.ymax)/2))
+                                    owned.add(tileNuclei.object(row));
+                            }
+                            NucleusTable ownedNuclei = new NucleusTable(owned);
+                            if (chLamin >= 0)
+                                imgLamin = tools.openChannel(reader, chLamin, tileName + "-" + chs[1], tile);
+                            ImageHandler imhORF1P = ImageHandler.wrap(imgORF1P);
+                            ImageHandler imhLamin = (imgLamin == null) ? null : ImageHandler.wrap(imgLamin);
+                            try {
+                                tools.measureNuclei(ownedNuclei, imhORF1P, imhLamin, bgORF1P, bgLamin);
+                            } finally {
+                                imhORF1P.closeImagePlus();
+                                if (imhLamin != null)
+                                    imhLamin.closeImagePlus();
+                            }
+                            addNuclei(ownedNuclei, tile, coreInTile, imgORF1P.getNSlices(), rows, borderNuclei);
+
+                            // Nuclei of previous tiles that can no longer be found again
+                            final int x = tx, y = ty;
+                            borderNuclei.removeIf(b -> y > b.lastTileY || (y == b.lastTileY && x >= b.lastTileX));
+
+                            if (tools.saveOverlay) {
+                                if (overlayWriter != null) {
+                                    overlayWriter.submit(ownedNuclei, imgCyto, imgORF1P, 0, imgORF1P.getNSlices(), tileName, outDir);
+                                    // Closed by the writer once written
+                                    imgCyto = imgORF1P = null;
+                                } else
+                                    tools.drawResults(ownedNuclei, imgCyto, imgORF1P, tileName, outDir);
+                            }
+                        } finally {
+                            close(imgNucleus, imgLamin, imgCyto, imgORF1P);
+                        }
+                    }
+                }
+            }
+            
+            // Nuclei of all tiles
+            int nbNuclei = 0;
+            for (double[] row : rows)
+                if (row != null)
+                    nbNuclei++;
+            NucleusTable nuclei = new NucleusTable(nbNuclei);
+            int index = 0;
+            for (double[] row : rows) {
+                if (row == null)
+                    continue;
+                nuclei.setRow(index, row);
+                nuclei.set(index, NucleusTable.Column.INDEX, index + 1);
+                index++;
+            }
+            System.out.println(nbNuclei + " " + chs[0] + " nuclei found");
+            tools.report.count("nucleiAfterFilter", nbNuclei);
+            image.nuclei = nuclei;
+            image.globalParams = tools.globalParams(nuclei, bgORF1P, bgLamin, cytoVol, cytoIntSum - bgORF1P*cytoVol/tools.pixVol);
+        } finally {
+            reader.close();
+        }
+        return(image);
+    }
+    
+    
+    /**
+     * Flush and close the tile images that are open
+     */
+    private void close(ImagePlus... imgs) {
+        for (ImagePlus img : imgs)
+            if (img != null)
+                tools.flush_close(img);
+    }
+    
+    
+    /**
+     * Add the measured nuclei of a tile to the rows, resolving the nuclei already found by the previous tiles:
+     * of two overlapping nuclei, the larger one is kept
+     */
+    private void addNuclei(NucleusTable nuclei, Rectangle tile, Rectangle coreInTile, int depth,
+            ArrayList<double[]> rows, ArrayList<BorderNucleus> borderNuclei) {
+        if (nuclei.size() == 0)
+            return;
+        ImageShort labels = new ImageShort("labels", tile.width, tile.height, depth);
+        for (int row = 0; row < nuclei.size(); row++)
+            nuclei.object(row).drawObject(labels, row + 1);
+        
+        for (int row = 0; row < nuclei.size(); row++) {
+            BoundingBox box = nuclei.object(row).getBoundingBox();
+            boolean inCore = box.xmin >= coreInTile.x && box.xmax < coreInTile.x + coreInTile.width
+                    && box.ymin >= coreInTile.y && box.ymax < coreInTile.y + coreInTile.height;
+            BorderNucleus nucleus = borderNucleus(labels, row + 1, box, tile);
+            // Tiles are read row by row, the last one reaching the nucleus is the bottom-right one
+            nucleus.lastTileX = (nucleus.x0 + nucleus.w - 1 + halo)/tileSize;
+            nucleus.lastTileY = (nucleus.y0 + nucleus.h - 1 + halo)/tileSize;
+            double volume = nuclei.get(row, NucleusTable.Column.VOLUME);
+            
+            boolean keep = true;
+            for (Iterator<BorderNucleus> it = borderNuclei.iterator(); it.hasNext(); ) {
+                BorderNucleus other = it.next();
+                if (!nucleus.intersects(other) || nucleus.overlap(other) < MIN_OVERLAP)
+                    continue;
+                if (volume > rows.get(other.row)[NucleusTable.Column.VOLUME.ordinal()]) {
+                    rows.set(other.row, null);
+                    it.remove();
+                } else {
+                    keep = false;
+                    break;
+                }
+            }
+            if (!keep)
+                continue;
+            
+            double[] values = new double[NucleusTable.COLUMNS.length];
+            for (NucleusTable.Column column : NucleusTable.COLUMNS)
+                values[column.ordinal()] = nuclei.get(row, column);
+            nucleus.row = rows.size();
+            rows.add(values);
+            if (!inCore)
+                borderNuclei.add(nucleus);
+        }
+        labels.closeImagePlus();
+    }
+    
+    
+    /**
+     * Voxels of one label in its bounding box, in field coordinates
+     */
+    private static BorderNucleus borderNucleus(ImageShort labels, int label, BoundingBox box, Rectangle tile) {
+        BorderNucleus nucleus = new BorderNucleus();
+        nucleus.x0 = box.xmin + tile.x;
+        nucleus.y0 = box.ymin + tile.y;
+        nucleus.z0 = box.zmin;
+        nucleus.w = box.xmax - box.xmin + 1;
+        nucleus.h = box.ymax - box.ymin + 1;
+        nucleus.d = box.zmax - box.zmin + 1;
+        nucleus.voxels = new BitSet(nucleus.w*nucleus.h*nucleus.d);
+        for (int z = box.zmin; z <= box.zmax; z++) {
+            short[] pixels = labels.pixels[z];
+            for (int y = box.ymin; y <= box.ymax; y++)
+                for (int x = box.xmin; x <= box.xmax; x++)
+                    if ((pixels[y*tile.width + x] & 0xffff) == label) {
+                        nucleus.voxels.set(((z - box.zmin)*nucleus.h + (y - box.ymin))*nucleus.w + (x - box.xmin));
+                        nucleus.nbVoxels++;
+                    }
+        }
+        return(nucleus);
+    }
+    
+    
+    private Rectangle core(int tx, int ty, int width, int height) {
+        int x = tx*tileSize;
+        int y = ty*tileSize;
+        return(new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y)));
+    }
+    
+    
+    private Rectangle withHalo(Rectangle core, int width, int height) {
+        int x0 = Math.max(0, core.x - halo);
+        int y0 = Math.max(0, core.y - halo);
+        int x1 = Math.min(width, core.x + core.width + halo);
+        int y1 = Math.min(height, core.y + core.height + halo);
+        return(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+    }
+    
+    
+    /**
+     * Add the min intensity Z projection of the region to the histogram
+     */
+    private static void addMinProjection(ImagePlus img, Rectangle region, Histogram hist) {
+        ImageStack stack = img.getStack();
+        int width = img.getWidth();
+        int[] minProj = new int[region.width*region.height];
+        Arrays.fill(minProj, Integer.MAX_VALUE);
+        for (int z = 1; z <= stack.getSize(); z++) {
+            Object pixels = stack.getPixels(z);
+            for (int y = 0; y < region.height; y++)
+                for (int x = 0; x < region.width; x++) {
+                    int i = (region.y + y)*width + region.x + x;
+                    int v = (pixels instanceof byte[]) ? ((byte[]) pixels)[i] & 0xff : ((short[]) pixels)[i] & 0xffff;
+                    if (v < minProj[y*region.width + x])
+                        minProj[y*region.width + x] = v;
+                }
+        }
+        for (int v : minProj)
+            hist.add(v);
+    }
+    
+    
+    /**
+     * Add the values of the region in slices first to last (1-based) to the histogram
+     */
+    private static void addValues(ImagePlus img, Rectangle region, int first, int last, Histogram hist) {
+        ImageStack stack = img.getStack();
+        int width = img.getWidth();
+        for (int z = first; z <= last; z++) {
+            Object pixels = stack.getPixels(z);
+            for (int y = region.y; y < region.y + region.height; y++)
+                for (int i = y*width + region.x; i < y*width + region.x + region.width; i++)
+                    hist.add((pixels instanceof byte[]) ? ((byte[]) pixels)[i] & 0xff : ((short[]) pixels)[i] & 0xffff);
+        }
+    }
+}
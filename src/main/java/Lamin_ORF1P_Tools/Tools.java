@@ -1,39 +1,57 @@
 package Lamin_ORF1P_Tools;
 
+import Lamin_ORF1P_Tools.Cellpose.CellposeLabelCache;
 import Lamin_ORF1P_Tools.Cellpose.CellposeSegmentImgPlusAdvanced;
+import Lamin_ORF1P_Tools.Cellpose.CellposeSegmentImgPlusBatch;
 import Lamin_ORF1P_Tools.Cellpose.CellposeTaskSettings;
+import Lamin_ORF1P_Tools.Results.BatchManifest;
+import Lamin_ORF1P_Tools.Results.ColumnarResultsSink;
+import Lamin_ORF1P_Tools.Results.ManifestResultsSink;
+import Lamin_ORF1P_Tools.Results.ResultsSink;
+import Lamin_ORF1P_Tools.Results.TsvResultsSink;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.Prefs;
-import ij.gui.Roi;
-import ij.io.FileSaver;
+import ij.ImageStack;
 import ij.measure.Calibration;
-import ij.measure.ResultsTable;
-import ij.plugin.Duplicator;
-import ij.plugin.RGBStackMerge;
 import ij.plugin.ZProjector;
-import ij.plugin.filter.Analyzer;
-import ij.process.ImageConverter;
+import ij.process.AutoThresholder;
 import ij.process.ImageProcessor;
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.stream.IntStream;
 import javax.swing.ImageIcon;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
 import loci.plugins.util.ImageProcessorReader;
 import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
 import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
 import mcib3d.geom2.measurements.MeasureCompactness;
 import mcib3d.geom2.measurements.MeasureEllipsoid;
-import mcib3d.geom2.measurements.MeasureIntensity;
 import mcib3d.geom2.measurements.MeasureVolume;
 import mcib3d.image3d.ImageHandler;
 import org.apache.commons.io.FilenameUtils;
@@ -55,10 +73,74 @@ public class Tools {
     public int cellPoseDiameter = 100;
     public String cellPoseModel = "cyto2";
     public String cellPoseEnvDirPath = (IJ.isWindows()) ? System.getProperty("user.home")+"\\miniconda3\\envs\\CellPose" : "/opt/miniconda3/envs/cellpose";
+    public boolean cellPoseWorker = true;
+    // Time allowed to the worker for one stack (s, plus s per million voxels), the command line is used instead after it
+    public long cellPoseRequestTimeout = 300;
+    public double cellPoseRequestTimeoutPerMVoxel = 60;
+    // Cellpose on GPU, or on CPU with cellPoseCpuWorkers processes (0 = from cores and memory) sharing the cores
+    public boolean cellPoseGpu = true;
+    public int cellPoseCpuWorkers = 0;
+    private int[] cpuPartition = null;
+    private static final int CELLPOSE_CPU_THREADS = 4;
+    private static final long CELLPOSE_CPU_BYTES = 3000000000L;
+    // Without the worker, nuclei of up to cellPoseBatchSize images (as many as fit in the heap) are segmented with one Cellpose call
+    public int cellPoseBatchSize = 8;
+    // Cellpose input resolution: fixed cellPoseResizeFactor, or chosen per image from the measured nuclei size
+    // so that nuclei are cellPoseTargetDiameter pixels wide in the smallest image sent to Cellpose
+    public boolean cellPoseAutoResize = false;
+    public float cellPoseResizeFactor = 0.5f;
+    public int cellPoseTargetDiameter = 30;
+    // Cache of Cellpose labels, reused when only filtering or cytoplasm parameters change (off by default, it may grow to cellPoseCacheMaxGB)
+    public boolean cellPoseCache = false;
+    public String cellPoseCacheDir = System.getProperty("user.home") + File.separator + ".lamin_orf1p" + File.separator + "cellpose_cache";
+    public double cellPoseCacheMaxGB = 20;
+    private CellposeLabelCache labelCache = null;
+    
+    // Run report of each stage (Results/run_report.json), served live on localhost:metricsPort/metrics if metricsPort > 0
+    public boolean runReport = true;
+    public int metricsPort = 0;
+    public RunReport report = new RunReport(false);
     public double minNucVol= 1000;
     public double maxNucVol = 15000; 
     
-    private final CLIJ2 clij2 = CLIJ2.getInstance();
+    // Cytoplasm
+    public static final double CYTO_GAUSSIAN_SIGMA = 4;
+    public static final int CYTO_MEDIAN_RADIUS = 8;
+    public String cytoThMethod = "Huang";
+    public boolean cytoStackHistogram = false;
+    
+    // Results images
+    public boolean saveOverlay = true;
+    public int overlayDownsample = 1;
+    
+    // Results files: nuclei parameters as text (.xls), optionally also as binary columns (.bin), made durable every checkpointImages images or checkpointMillis ms
+    public String[] resultsFormats = {"Text (.xls)", "Columnar (.bin + .xls)"};
+    public String resultsFormat = resultsFormats[0];
+    public int checkpointImages = 20;
+    public long checkpointMillis = 60000;
+    
+    // Batch
+    public int nbParallelImages = Math.max(1, Runtime.getRuntime().availableProcessors()/8);
+    public double maxHeapFraction = 0.8;
+    public int pipelineQueueSize = 1;
+    
+    // Crop stacks to the planes scoring at least zCropMinScore of the nucleus focus score range, plus zCropMargin planes
+    public boolean zCrop = false;
+    public double zCropMinScore = 0.1;
+    public int zCropMargin = 2;
+    
+    // Large fields analyzed by tiles of tileSize pixels (0 = whole image) read with a halo of tileHalo pixels
+    public int tileSize = 0;
+    public int tileHalo = 128;
+    
+    // Gaussian filter backend: "Auto" (CLIJ2 if it can be started, CPU otherwise), "CPU" or "CLIJ2"
+    public String[] gaussianBackends = {"Auto", "CPU", "CLIJ2"};
+    public String gaussianBackend = gaussianBackends[0];
+    private CLIJ2 clij2 = null;
+    private boolean clij2Failed = false;
+    
+    // Channel statistics of the images being analyzed
+    private final Map<ImagePlus, ChannelStats> statsCache = Collections.synchronizedMap(new WeakHashMap<>());
  
    
     
@@ -76,8 +158,8 @@ public class Tools {
         try {
             loader.loadClass("net.haesleinhuepf.clij2.CLIJ2");
         } catch (ClassNotFoundException e) {
-            IJ.log("CLIJ not installed, please install from update site");
-            return false;
+            IJ.log("CLIJ not installed, Gaussian filtering will run on CPU");
+            gaussianBackend = "CPU";
         }
         return true;
     }
@@ -105,6 +187,37 @@ public class Tools {
     }
     
     
+    /**
+     * Create a reader set on image, with an OME-XML metadata store of the latest schema version
+     */
+    public ImageProcessorReader createReader(String imageName) throws DependencyException, ServiceException, FormatException, IOException {
+        ServiceFactory factory = new ServiceFactory();
+        OMEXMLService service = factory.getInstance(OMEXMLService.class);
+        IMetadata meta = service.createOMEXMLMetadata();
+        ImageProcessorReader reader = new ImageProcessorReader();
+        reader.setMetadataStore(meta);
+        reader.setId(imageName);
+        return(reader);
+    }
+    
+    
+    /**
+     * Estimate heap needed to analyze an image from its metadata:
+     * the 3 analyzed channels + about 5 working stacks (labels, filtered copy, mask, results image)
+     */
+    public long estimateFootprint(String imageName) throws DependencyException, ServiceException, FormatException, IOException {
+        ImageProcessorReader reader = createReader(imageName);
+        IMetadata meta = (IMetadata) reader.getMetadataStore();
+        long sizeX = meta.getPixelsSizeX(0).getValue();
+        long sizeY = meta.getPixelsSizeY(0).getValue();
+        long sizeZ = meta.getPixelsSizeZ(0).getValue();
+        int sizeC = meta.getPixelsSizeC(0).getValue();
+        int bytes = Math.max(2, FormatTools.getBytesPerPixel(FormatTools.pixelTypeFromString(meta.getPixelsType(0).getValue())));
+        reader.close();
+        return(sizeX*sizeY*sizeZ*bytes*(Math.min(sizeC, 3) + 5));
+    }
+    
+    
     /**
      * Find image calibration
      */
@@ -201,15 +314,45 @@ public class Tools {
         gd.addMessage("Nuclei detection", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("Min nucleus volume (µm3):", minNucVol);
         gd.addNumericField("Max nucleus volume (µm3):", maxNucVol);   
+        gd.addCheckbox("Cache Cellpose segmentations", cellPoseCache);
+        gd.addCheckbox("Cellpose resolution from nuclei size", cellPoseAutoResize);
+        gd.addCheckbox("Cellpose on GPU", cellPoseGpu);
+        
+        gd.addMessage("Cytoplasm detection", Font.getFont("Monospace"), Color.blue);
+        gd.addChoice("Threshold method: ", AutoThresholder.getMethods(), cytoThMethod);
+        gd.addCheckbox("Threshold on whole stack histogram", cytoStackHistogram);
         
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY calibration (µm):", cal.pixelWidth);
         gd.addNumericField("Z calibration (µm):", cal.pixelDepth);
+        
+        gd.addMessage("Results images", Font.getFont("Monospace"), Color.blue);
+        gd.addCheckbox("Save results images", saveOverlay);
+        gd.addNumericField("Results images XY downsampling:", overlayDownsample);
+        gd.addChoice("Nuclei results format: ", resultsFormats, resultsFormat);
+        
+        gd.addMessage("Processing", Font.getFont("Monospace"), Color.blue);
+        gd.addChoice("Gaussian filter: ", gaussianBackends, gaussianBackend);
+        gd.addCheckbox("Crop empty or out-of-focus planes", zCrop);
+        gd.addNumericField("Images analyzed in parallel:", nbParallelImages);
+        gd.addNumericField("Tile size (pixels, 0 = whole image):", tileSize);
+        gd.addNumericField("Tile halo (pixels):", tileHalo);
+        gd.addNumericField("Images per Cellpose call (no worker):", cellPoseBatchSize);
+        gd.addNumericField("Cellpose CPU processes (0 = auto):", cellPoseCpuWorkers);
         gd.showDialog();
         
         String[] ch = new String[chNames.length];
         for (int i = 0; i < chNames.length; i++)
             ch[i] = gd.getNextChoice();
+        cytoThMethod = gd.getNextChoice();
+        cellPoseCache = gd.getNextBoolean();
+        cellPoseAutoResize = gd.getNextBoolean();
+        cellPoseGpu = gd.getNextBoolean();
+        cytoStackHistogram = gd.getNextBoolean();
+        saveOverlay = gd.getNextBoolean();
+        zCrop = gd.getNextBoolean();
+        resultsFormat = gd.getNextChoice();
+        gaussianBackend = gd.getNextChoice();
        
         minNucVol = (float) gd.getNextNumber();
         maxNucVol = (float) gd.getNextNumber();
@@ -217,6 +360,12 @@ public class Tools {
         cal.pixelWidth = cal.pixelHeight = gd.getNextNumber();
         cal.pixelDepth = gd.getNextNumber();
         pixVol = (float) (cal.pixelWidth*cal.pixelHeight*cal.pixelDepth);
+        overlayDownsample = Math.max(1, (int) gd.getNextNumber());
+        nbParallelImages = Math.max(1, (int) gd.getNextNumber());
+        tileSize = Math.max(0, (int) gd.getNextNumber());
+        tileHalo = Math.max(0, (int) gd.getNextNumber());
+        cellPoseBatchSize = Math.max(1, (int) gd.getNextNumber());
+        cellPoseCpuWorkers = Math.max(0, (int) gd.getNextNumber());
         
         if(gd.wasCanceled())
             ch = null;
@@ -225,10 +374,158 @@ public class Tools {
     }
     
     
+    /**
+     * Set parameters from a parameter file instead of the dialog (headless runs),
+     * parameters not in the file keep their default value, as in the dialog
+     * Return chosen channels, or null if a channel is not found in the image
+     */
+    public String[] loadParameters(Properties params, String[] channels) {
+        String[] keys = {"channel.nucleus", "channel.lamin", "channel.orf1p"};
+        String[] ch = new String[chNames.length];
+        for (int i = 0; i < chNames.length; i++) {
+            ch[i] = params.getProperty(keys[i], channels[i]).trim();
+            if (!Arrays.asList(channels).contains(ch[i])) {
+                System.out.println(chNames[i] + " channel " + ch[i] + " not found in " + Arrays.toString(channels));
+                return(null);
+            }
+        }
+        
+        minNucVol = Double.parseDouble(params.getProperty("minNucVol", String.valueOf(minNucVol)));
+        maxNucVol = Double.parseDouble(params.getProperty("maxNucVol", String.valueOf(maxNucVol)));
+        cellPoseEnvDirPath = params.getProperty("cellposeEnvDir", cellPoseEnvDirPath);
+        cellPoseWorker = Boolean.parseBoolean(params.getProperty("cellposeWorker", String.valueOf(cellPoseWorker)));
+        cellPoseRequestTimeout = Long.parseLong(params.getProperty("cellposeRequestTimeout", String.valueOf(cellPoseRequestTimeout)));
+        cellPoseRequestTimeoutPerMVoxel = Double.parseDouble(params.getProperty("cellposeRequestTimeoutPerMVoxel", String.valueOf(cellPoseRequestTimeoutPerMVoxel)));
+        cellPoseGpu = Boolean.parseBoolean(params.getProperty("cellposeGpu", String.valueOf(cellPoseGpu)));
+        cellPoseCpuWorkers = Math.max(0, Integer.parseInt(params.getProperty("cellposeCpuWorkers", String.valueOf(cellPoseCpuWorkers))));
+        cellPoseBatchSize = Math.max(1, Integer.parseInt(params.getProperty("cellposeBatchSize", String.valueOf(cellPoseBatchSize))));
+        cellPoseCache = Boolean.parseBoolean(params.getProperty("cellposeCache", String.valueOf(cellPoseCache)));
+        cellPoseCacheDir = params.getProperty("cellposeCacheDir", cellPoseCacheDir);
+        cellPoseAutoResize = Boolean.parseBoolean(params.getProperty("cellposeAutoResize", String.valueOf(cellPoseAutoResize)));
+        cellPoseResizeFactor = Float.parseFloat(params.getProperty("cellposeResizeFactor", String.valueOf(cellPoseResizeFactor)));
+        cellPoseTargetDiameter = Integer.parseInt(params.getProperty("cellposeTargetDiameter", String.valueOf(cellPoseTargetDiameter)));
+        cytoThMethod = params.getProperty("cytoThMethod", cytoThMethod);
+        cytoStackHistogram = Boolean.parseBoolean(params.getProperty("cytoStackHistogram", String.valueOf(cytoStackHistogram)));
+        
+        cal.pixelWidth = cal.pixelHeight = Double.parseDouble(params.getProperty("calXY", String.valueOf(cal.pixelWidth)));
+        cal.pixelDepth = Double.parseDouble(params.getProperty("calZ", String.valueOf(cal.pixelDepth)));
+        pixVol = (float) (cal.pixelWidth*cal.pixelHeight*cal.pixelDepth);
+        
+        saveOverlay = Boolean.parseBoolean(params.getProperty("saveOverlay", String.valueOf(saveOverlay)));
+        overlayDownsample = Math.max(1, Integer.parseInt(params.getProperty("overlayDownsample", String.valueOf(overlayDownsample))));
+        String format = params.getProperty("resultsFormat", resultsFormat).toLowerCase();
+        for (String f : resultsFormats)
+            if (f.toLowerCase().startsWith(format))
+                resultsFormat = f;
+        gaussianBackend = params.getProperty("gaussianBackend", gaussianBackend);
+        nbParallelImages = Math.max(1, Integer.parseInt(params.getProperty("nbParallelImages", String.valueOf(nbParallelImages))));
+        runReport = Boolean.parseBoolean(params.getProperty("runReport", String.valueOf(runReport)));
+        metricsPort = Integer.parseInt(params.getProperty("metricsPort", String.valueOf(metricsPort)));
+        zCrop = Boolean.parseBoolean(params.getProperty("zCrop", String.valueOf(zCrop)));
+        zCropMinScore = Double.parseDouble(params.getProperty("zCropMinScore", String.valueOf(zCropMinScore)));
+        zCropMargin = Math.max(0, Integer.parseInt(params.getProperty("zCropMargin", String.valueOf(zCropMargin))));
+        tileSize = Math.max(0, Integer.parseInt(params.getProperty("tileSize", String.valueOf(tileSize))));
+        tileHalo = Math.max(0, Integer.parseInt(params.getProperty("tileHalo", String.valueOf(tileHalo))));
+        return(ch);
+    }
+    
+    
+    /**
+     * Open one channel of the image currently set in the reader:
+     * only the z-planes of this channel are decoded, once
+     */
+    public ImagePlus openChannel(ImageProcessorReader reader, int indexCh, String title) throws FormatException, IOException {
+        return(openChannel(reader, indexCh, title, new Rectangle(0, 0, reader.getSizeX(), reader.getSizeY())));
+    }
+    
+    
+    /**
+     * Open the XY region of one channel, only this region of the planes is decoded
+     */
+    public ImagePlus openChannel(ImageProcessorReader reader, int indexCh, String title, Rectangle region) throws FormatException, IOException {
+        return(openChannel(reader, indexCh, title, region, null));
+    }
+    
+    
+    /**
+     * Open the XY region of one channel, scoring the focus of each plane in planeScores (if not null) as it is decoded
+     */
+    public ImagePlus openChannel(ImageProcessorReader reader, int indexCh, String title, Rectangle region, double[] planeScores) throws FormatException, IOException {
+        int sizeZ = reader.getSizeZ();
+        ImageStack stack = new ImageStack(region.width, region.height);
+        for (int z = 0; z < sizeZ; z++) {
+            ImageProcessor ip = reader.openProcessors(reader.getIndex(z, indexCh, 0), region.x, region.y, region.width, region.height)[0];
+            if (planeScores != null)
+                planeScores[z] = ZRange.score(ip);
+            stack.addSlice(ip);
+        }
+        ImagePlus img = new ImagePlus(title, stack);
+        img.setDimensions(1, sizeZ, 1);
+        img.setCalibration(cal);
+        return(img);
+    }
+    
+    
+    /**
+     * Keep planes first to last (0-based) of img, sharing their pixels,
+     * statistics already computed on the whole stack are kept for the cropped one
+     */
+    public ImagePlus cropZ(ImagePlus img, int first, int last) {
+        ImageStack stack = img.getStack();
+        ImageStack cropped = new ImageStack(img.getWidth(), img.getHeight());
+        for (int z = first; z <= last; z++)
+            cropped.addSlice(stack.getProcessor(z+1));
+        ImagePlus imgCropped = new ImagePlus(img.getTitle(), cropped);
+        imgCropped.setDimensions(1, last - first + 1, 1);
+        imgCropped.setCalibration(cal);
+        ChannelStats stats = statsCache.get(img);
+        if (stats != null)
+            statsCache.put(imgCropped, stats);
+        return(imgCropped);
+    }
+    
+    
+    /**
+     * Create results files in outDir, in the format chosen in the dialog,
+     * keeping the rows of the images finished in the manifest
+     */
+    public ResultsSink createResultsSink(String outDir, BatchManifest manifest) throws IOException {
+        Set<String> keep = manifest.finishedNames();
+        ResultsSink sink;
+        // Checkpoints are driven by the manifest sink
+        if (resultsFormat.equals(resultsFormats[1]))
+            sink = new ColumnarResultsSink(outDir, keep, Integer.MAX_VALUE, Long.MAX_VALUE);
+        else
+            sink = new TsvResultsSink(outDir, true, keep, Integer.MAX_VALUE, Long.MAX_VALUE);
+        return(new ManifestResultsSink(sink, manifest, checkpointImages, checkpointMillis));
+    }
+    
+    
+    /**
+     * Hash of the settings that change results, images analyzed with other settings are analyzed again
+     */
+    public String settingsHash(String[] chs) {
+        String settings = String.join("|", chs) + "|" + minNucVol + "|" + maxNucVol + "|" + cal.pixelWidth + "|" + cal.pixelDepth
+                + "|" + cytoThMethod + "|" + cytoStackHistogram + "|" + cellPoseModel + "|" + cellPoseDiameter + "|" + resultsFormat
+                + "|" + cellPoseAutoResize + "|" + cellPoseResizeFactor + "|" + cellPoseTargetDiameter
+                + "|" + tileSize + "|" + tileHalo + "|" + zCrop + "|" + zCropMinScore + "|" + zCropMargin;
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(settings.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++)
+                hex.append(String.format("%02x", hash[i]));
+            return(hex.toString());
+        } catch (NoSuchAlgorithmException ex) {
+            return(Integer.toHexString(settings.hashCode()));
+        }
+    }
+    
+    
     /**
      * Flush and close an image
      */
     public void flush_close(ImagePlus img) {
+        statsCache.remove(img);
         img.flush();
         img.close();
     }
@@ -239,78 +536,235 @@ public class Tools {
      * - apply CellPose in 2D slice by slice 
      * - let CellPose reconstruct cells in 3D using the stitch threshold parameters
      */
-    public ArrayList<Nucleus> cellposeDetection(ImagePlus img, boolean resize, String cellposeModel, int diameter, double stitchThreshold, boolean zFilter) throws IOException{
-        float resizeFactor;
-        ImagePlus imgResized;
-        if (resize) {
-            resizeFactor = 0.5f;
-            imgResized = img.resize((int)(img.getWidth()*resizeFactor), (int)(img.getHeight()*resizeFactor), 1, "none");
-        } else {
-            resizeFactor = 1;
-            imgResized = new Duplicator().run(img).duplicate();
+    public NucleusTable cellposeDetection(ImagePlus img, boolean resize, String cellposeModel, int diameter, double stitchThreshold, boolean zFilter) throws IOException{
+        CellposeInput input = cellposeInput(img, resize, cellposeModel, diameter, stitchThreshold);
+       
+        // Run CellPose, unless the same image was already segmented with the same settings
+        ImagePlus imgOut = null;
+        String cacheKey = null;
+        if (cellPoseCache) {
+            try (RunReport.Stage stage = report.stage("cellposeCache")) {
+                cacheKey = CellposeLabelCache.key(input.img, input.settings, input.resizeFactor);
+                imgOut = getLabelCache().get(cacheKey, img.getTitle() + "-labels");
+            }
+            if (imgOut != null)
+                System.out.println("CellPose labels found in cache");
+        }
+        if (imgOut == null) {
+            CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(input.settings, input.img);
+            try (RunReport.Stage stage = report.stage("cellpose")) {
+                imgOut = cellpose.run();
+            }
+            if (cellPoseCache)
+                try (RunReport.Stage stage = report.stage("cellposeCache")) {
+                    getLabelCache().put(CellposeLabelCache.usedKey(cacheKey, input.img, input.settings, cellpose.getSettings(), input.resizeFactor), imgOut);
+                }
         }
+        return(nucleiFromLabels(imgOut, img, input.resizeFactor, zFilter));
+    }
+    
+    
+    /**
+     * Nuclei of img from the Cellpose labels of its resized copy, filtered by size (labels are closed here)
+     */
+    private NucleusTable nucleiFromLabels(ImagePlus imgOut, ImagePlus img, float resizeFactor, boolean zFilter) {
+        LabelScanner scanner;
+        ImageHandler imgH;
+        Objects3DIntPopulation pop;
+        try (RunReport.Stage stage = report.stage("nucleiFilter")) {
+            if (resizeFactor != 1) {
+                ImagePlus imgResized = imgOut.resize(img.getWidth(), img.getHeight(), "none");
+                flush_close(imgOut);
+                imgOut = imgResized;
+            }
+            imgOut.setCalibration(cal);
 
-        // Define CellPose settings
-        CellposeTaskSettings settings = new CellposeTaskSettings(cellposeModel, 1, (int)(diameter*resizeFactor), cellPoseEnvDirPath);
-        settings.setStitchThreshold(stitchThreshold);
-        settings.useGpu(true);
-       
-        // Run CellPose
-        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imgResized);
-        ImagePlus imgOut = cellpose.run();
-        if(resize) imgOut = imgOut.resize(img.getWidth(), img.getHeight(), "none");
-        imgOut.setCalibration(cal);
-       
-        // Get cells as a population of objects
-        ImageHandler imgH = ImageHandler.wrap(imgOut);
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(imgH);
-        System.out.println(pop.getNbObjects() + " CellPose detections");
-       
-        // Filter cells by size
-        if (zFilter)
-            pop = zFilterPop(pop);
-        popFilterSize(pop, minNucVol, maxNucVol);
-        pop.resetLabels();
-        System.out.println(pop.getNbObjects() + " detections remaining after size filtering");
+            // Filter cells by size on the label image, before building objects
+            scanner = new LabelScanner(imgOut);
+            System.out.println(scanner.nbLabels + " CellPose detections");
+            scanner.filter(zFilter, minNucVol, maxNucVol, cal.pixelWidth*cal.pixelHeight*cal.pixelDepth);
+
+            // Get remaining cells as a population of objects
+            imgH = ImageHandler.wrap(imgOut);
+            pop = new Objects3DIntPopulation(imgH);
+            System.out.println(pop.getNbObjects() + " detections remaining after size filtering");
+        }
+        report.count("cellposeDetections", scanner.nbLabels);
+        report.count("nucleiAfterFilter", pop.getNbObjects());
         
-        ArrayList<Nucleus> nuclei = new ArrayList<Nucleus>();
-        for (Object3DInt obj : pop.getObjects3DInt())
-            nuclei.add(new Nucleus(obj));
+        ArrayList<Object3DInt> objects = new ArrayList<>(pop.getObjects3DInt());
+        objects.sort((o1, o2) -> Float.compare(o1.getLabel(), o2.getLabel()));
+        NucleusTable nuclei = new NucleusTable(objects);
        
         flush_close(imgOut);
         imgH.closeImagePlus();
         
         return(nuclei);
-    } 
+    }
     
     
-    /*
-     * Only keep objects in population that appear in one z-slice only 
+    /**
+     * Number of CPU Cellpose processes and threads of each one:
+     * torch scales poorly beyond a few threads, so cores are split between processes of CELLPOSE_CPU_THREADS threads,
+     * as many as fit in the physical memory left by the Java heap
      */
-    public Objects3DIntPopulation zFilterPop (Objects3DIntPopulation pop) {
-        Objects3DIntPopulation popZ = new Objects3DIntPopulation();
-        for (Object3DInt obj : pop.getObjects3DInt()) {
-            int zmin = obj.getBoundingBox().zmin;
-            int zmax = obj.getBoundingBox().zmax;
-            if (zmax != zmin)
-                popZ.addObject(obj);
+    public synchronized int[] cellposeCpuPartition() {
+        if (cpuPartition == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            int nbWorkers = cellPoseCpuWorkers;
+            if (nbWorkers <= 0) {
+                long freeBytes = Long.MAX_VALUE;
+                java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+                if (os instanceof com.sun.management.OperatingSystemMXBean)
+                    freeBytes = ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize() - Runtime.getRuntime().maxMemory();
+                nbWorkers = (int) Math.max(1, Math.min(cores/CELLPOSE_CPU_THREADS, freeBytes/CELLPOSE_CPU_BYTES));
+            }
+            cpuPartition = new int[] {nbWorkers, Math.max(1, cores/nbWorkers)};
+            System.out.println(nbWorkers + " Cellpose CPU processes of " + cpuPartition[1] + " threads");
         }
-        return popZ;
+        return(cpuPartition);
     }
     
     
     /**
-     * Filter objects in population by size
+     * Detect nuclei of several stacks, segmenting those whose labels are not cached with one Cellpose call per diameter,
+     * nuclei are returned in the order of the stacks
      */
-    public void popFilterSize(Objects3DIntPopulation pop, double min, double max) {
-        pop.getObjects3DInt().removeIf(p -> (new MeasureVolume(p).getVolumeUnit() < min) || (new MeasureVolume(p).getVolumeUnit() > max));
+    public List<NucleusTable> cellposeBatchDetection(List<ImagePlus> imgs, boolean resize, String cellposeModel, int diameter, double stitchThreshold, boolean zFilter) throws IOException {
+        List<CellposeInput> inputs = new ArrayList<>();
+        ImagePlus[] labels = new ImagePlus[imgs.size()];
+        try {
+            // Stacks grouped by Cellpose diameter, the only setting that changes from one stack to another
+            LinkedHashMap<Integer, List<Integer>> groups = new LinkedHashMap<>();
+            for (int i = 0; i < imgs.size(); i++) {
+                CellposeInput input = cellposeInput(imgs.get(i), resize, cellposeModel, diameter, stitchThreshold);
+                inputs.add(input);
+                if (cellPoseCache)
+                    try (RunReport.Stage stage = report.stage("cellposeCache")) {
+                        input.cacheKey = CellposeLabelCache.key(input.img, input.settings, input.resizeFactor);
+                        labels[i] = getLabelCache().get(input.cacheKey, imgs.get(i).getTitle() + "-labels");
+                    }
+                if (labels[i] == null)
+                    groups.computeIfAbsent(input.diameter, d -> new ArrayList<>()).add(i);
+            }
+            for (List<Integer> group : groups.values()) {
+                List<ImagePlus> groupImgs = new ArrayList<>();
+                for (int i : group)
+                    groupImgs.add(inputs.get(i).img);
+                List<ImagePlus> groupLabels;
+                List<CellposeTaskSettings> groupSettings;
+                try (RunReport.Stage stage = report.stage("cellpose")) {
+                    CellposeSegmentImgPlusBatch batch = new CellposeSegmentImgPlusBatch(inputs.get(group.get(0)).settings, groupImgs);
+                    groupLabels = batch.run();
+                    groupSettings = new ArrayList<>(batch.getSettings());
+                    // Stacks the batch call did not segment are segmented alone
+                    for (int j = 0; j < group.size(); j++)
+                        if (groupLabels.get(j) == null) {
+                            CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(inputs.get(group.get(j)).settings, groupImgs.get(j));
+                            groupLabels.set(j, cellpose.run());
+                            groupSettings.set(j, cellpose.getSettings());
+                        }
+                }
+                for (int j = 0; j < group.size(); j++) {
+                    CellposeInput input = inputs.get(group.get(j));
+                    labels[group.get(j)] = groupLabels.get(j);
+                    if (cellPoseCache)
+                        try (RunReport.Stage stage = report.stage("cellposeCache")) {
+                            getLabelCache().put(CellposeLabelCache.usedKey(input.cacheKey, input.img, input.settings, groupSettings.get(j), input.resizeFactor), labels[group.get(j)]);
+                        }
+                }
+            }
+            
+            List<NucleusTable> nuclei = new ArrayList<>();
+            for (int i = 0; i < imgs.size(); i++) {
+                nuclei.add(nucleiFromLabels(labels[i], imgs.get(i), inputs.get(i).resizeFactor, zFilter));
+                labels[i] = null;
+            }
+            return(nuclei);
+        } finally {
+            for (CellposeInput input : inputs)
+                if (input.resizeFactor != 1)
+                    flush_close(input.img);
+            for (ImagePlus img : labels)
+                if (img != null)
+                    flush_close(img);
+        }
+    }
+    
+    
+    /**
+     * Stack sent to Cellpose and its settings
+     */
+    private static class CellposeInput {
+        ImagePlus img;
+        float resizeFactor;
+        int diameter;
+        CellposeTaskSettings settings;
+        String cacheKey;
+    }
+    
+    
+    /**
+     * Resize img for Cellpose, by a fixed factor or by one chosen from the nuclei size, and define Cellpose settings
+     */
+    private CellposeInput cellposeInput(ImagePlus img, boolean resize, String cellposeModel, int diameter, double stitchThreshold) {
+        CellposeInput input = new CellposeInput();
+        float resizeFactor = 1;
+        if (resize && cellPoseAutoResize) {
+            try (RunReport.Stage stage = report.stage("nucleusScale")) {
+                double nucDiameter = nucleusDiameter(img);
+                resizeFactor = Math.max(0.05f, Math.min(1, Math.round(100*cellPoseTargetDiameter/nucDiameter)/100f));
+                diameter = (int) Math.round(nucDiameter);
+                System.out.println("Nuclei diameter " + diameter + " pixels, Cellpose resize factor " + resizeFactor);
+            }
+        } else if (resize)
+            resizeFactor = cellPoseResizeFactor;
+        input.resizeFactor = resizeFactor;
+        input.img = (resizeFactor != 1) ?
+                img.resize((int)(img.getWidth()*resizeFactor), (int)(img.getHeight()*resizeFactor), 1, "none") : img;
+
+        // Define CellPose settings
+        input.diameter = Math.round(diameter*resizeFactor);
+        input.settings = new CellposeTaskSettings(cellposeModel, 1, input.diameter, cellPoseEnvDirPath);
+        input.settings.setStitchThreshold(stitchThreshold);
+        input.settings.useGpu(cellPoseGpu);
+        input.settings.useWorker(cellPoseWorker);
+        input.settings.setRequestTimeout(cellPoseRequestTimeout, cellPoseRequestTimeoutPerMVoxel);
+        if (!cellPoseGpu) {
+            int[] partition = cellposeCpuPartition();
+            input.settings.setNbWorkers(partition[0]).setNbThreads(partition[1]);
+        }
+        return(input);
+    } 
+    
+    
+    /**
+     * Typical nucleus diameter in pixels, measured on a binned projection of img
+     * and kept between the diameters of the min and max nucleus volumes
+     */
+    public double nucleusDiameter(ImagePlus img) {
+        double minDiameter = 2*Math.cbrt(3*minNucVol/(4*Math.PI))/cal.pixelWidth;
+        double maxDiameter = 2*Math.cbrt(3*maxNucVol/(4*Math.PI))/cal.pixelWidth;
+        // Smallest nuclei still cover a few pixels in the binned projection
+        int bin = Math.max(1, (int) (minDiameter/8));
+        double diameter = NucleusScale.medianDiameter(img, bin);
+        if (Double.isNaN(diameter))
+            diameter = Math.sqrt(minDiameter*maxDiameter);
+        return(Math.max(minDiameter, Math.min(maxDiameter, diameter)));
+    }
+    
+    
+    private synchronized CellposeLabelCache getLabelCache() {
+        if (labelCache == null)
+            labelCache = new CellposeLabelCache(new File(cellPoseCacheDir), (long) (cellPoseCacheMaxGB*1e9));
+        return(labelCache);
     }
     
     
     /**
      * Compute cells parameters
      */
-    public HashMap<String, Double> tagCells(ImagePlus imgORF1P, ImagePlus imgLamin, ImagePlus imgCyto, ArrayList<Nucleus> nuclei) {
+    public HashMap<String, Double> tagCells(ImagePlus imgORF1P, ImagePlus imgLamin, ImagePlus imgCyto, NucleusTable nuclei) {
         ImageHandler imhORF1P = ImageHandler.wrap(imgORF1P);
         ImageHandler imhLamin = (imgLamin == null) ? null : ImageHandler.wrap(imgLamin);
         // Compute background
@@ -322,33 +776,71 @@ public class Tools {
         double cytoVol = cytoParams[0];
         double cytoInt = cytoParams[1] - bgORF1P*cytoVol/pixVol;
 
-        // Save cells parameters
-        double allNucVol = 0;
-        double nucLaminIntSum = 0;
-        double nucORF1PIntSum = 0;
-        for (Nucleus nucleus: nuclei) {
-            Object3DInt nucObj = nucleus.nucleus;
+        measureNuclei(nuclei, imhORF1P, imhLamin, bgORF1P, bgLamin);
+        HashMap<String, Double> globalParams = globalParams(nuclei, bgORF1P, bgLamin, cytoVol, cytoInt);
+        
+        imhORF1P.closeImagePlus();
+        if (imhLamin != null)
+            imhLamin.closeImagePlus();
+
+        return(globalParams);
+    }
+    
+    
+    /**
+     * Measure nuclei in parallel: shape from mcib3d, built once per nucleus,
+     * ORF1P and lamin intensities summed in a single sweep over the nucleus voxels
+     */
+    public void measureNuclei(NucleusTable nuclei, ImageHandler imhORF1P, ImageHandler imhLamin, double bgORF1P, double bgLamin) {
+        IntStream.range(0, nuclei.size()).parallel().forEach(row -> {
+            Object3DInt nucObj = nuclei.object(row);
 
             double nucVol = new MeasureVolume(nucObj).getVolumeUnit();
-            allNucVol += nucVol;
             
-            double nucComp = new MeasureCompactness(nucObj).getValueMeasurement(MeasureCompactness.COMP_CORRECTED);
-            double nucSph = new MeasureCompactness(nucObj).getValueMeasurement(MeasureCompactness.SPHER_CORRECTED);
-            double nucElongation = new MeasureEllipsoid(nucObj).getValueMeasurement(MeasureEllipsoid.ELL_ELONGATION);
-            double nucFlatness = new MeasureEllipsoid(nucObj).getValueMeasurement(MeasureEllipsoid.ELL_FLATNESS);
+            MeasureCompactness compactness = new MeasureCompactness(nucObj);
+            double nucComp = compactness.getValueMeasurement(MeasureCompactness.COMP_CORRECTED);
+            double nucSph = compactness.getValueMeasurement(MeasureCompactness.SPHER_CORRECTED);
+            MeasureEllipsoid ellipsoid = new MeasureEllipsoid(nucObj);
+            double nucElongation = ellipsoid.getValueMeasurement(MeasureEllipsoid.ELL_ELONGATION);
+            double nucFlatness = ellipsoid.getValueMeasurement(MeasureEllipsoid.ELL_FLATNESS);
             
-            double nucORF1PInt = new MeasureIntensity(nucObj, imhORF1P).getValueMeasurement(MeasureIntensity.INTENSITY_SUM);
-            nucORF1PInt = nucORF1PInt - bgORF1P*nucVol/pixVol;
-            nucORF1PIntSum += nucORF1PInt;
+            double[] intSums = intensitySums(nucObj, imhORF1P, imhLamin);
+            double nucORF1PInt = intSums[0] - bgORF1P*nucVol/pixVol;
             double nucLaminInt = 0;
-            if (imhLamin != null) {
-                nucLaminInt = new MeasureIntensity(nucObj, imhLamin).getValueMeasurement(MeasureIntensity.INTENSITY_SUM);
-                nucLaminInt = nucLaminInt - bgLamin*nucVol/pixVol;
-                nucLaminIntSum += nucLaminInt;
-            }
+            if (imhLamin != null)
+                nucLaminInt = intSums[1] - bgLamin*nucVol/pixVol;
             
-            nucleus.setParams(nucObj.getLabel(), nucVol, nucComp, nucSph, nucElongation, nucFlatness, nucLaminInt, nucORF1PInt);
+            nuclei.setRow(row, nucObj.getLabel(), nucVol, nucComp, nucSph, nucElongation, nucFlatness, nucLaminInt, nucORF1PInt);
+        });
+    }
+    
+    
+    /**
+     * Sum of the intensities of an object in two images (second one may be null) in one sweep over its voxels,
+     * in the same order as mcib3d MeasureIntensity INTENSITY_SUM
+     */
+    public static double[] intensitySums(Object3DInt obj, ImageHandler imh1, ImageHandler imh2) {
+        double sum1 = 0, sum2 = 0;
+        for (Object3DPlane plane : obj.getObject3DPlanes()) {
+            int z = plane.getZPlane();
+            for (VoxelInt v : plane.getVoxels()) {
+                sum1 += imh1.getPixel(v.getX(), v.getY(), z);
+                if (imh2 != null)
+                    sum2 += imh2.getPixel(v.getX(), v.getY(), z);
+            }
         }
+        return(new double[] {sum1, sum2});
+    }
+    
+    
+    /**
+     * Global parameters of an image from its nuclei, backgrounds and cytoplasm parameters
+     */
+    public HashMap<String, Double> globalParams(NucleusTable nuclei, double bgORF1P, double bgLamin, double cytoVol, double cytoInt) {
+        // Sum nuclei parameters, in nuclei order
+        double allNucVol = nuclei.sum(NucleusTable.Column.VOLUME);
+        double nucLaminIntSum = nuclei.sum(NucleusTable.Column.LAMIN_INT);
+        double nucORF1PIntSum = nuclei.sum(NucleusTable.Column.ORF1P_INT);
         // Save global parameters
         HashMap<String, Double> globalParams = new HashMap<>();
         globalParams.put("nucNb", (double) nuclei.size());
@@ -359,11 +851,6 @@ public class Tools {
         globalParams.put("nucORF1PIntSum", nucORF1PIntSum);
         globalParams.put("cytoORF1PVol", cytoVol);
         globalParams.put("cytoORF1PInt", cytoInt);
-        
-        imhORF1P.closeImagePlus();
-        if (imhLamin != null)
-            imhLamin.closeImagePlus();
-
         return(globalParams);
     }
     
@@ -373,11 +860,20 @@ public class Tools {
      * Z projection over min intensity + read median intensity
      */
     public double findBackground(ImagePlus img) {
-      ImagePlus imgProj = doZProjection(img, ZProjector.MIN_METHOD);
-      ImageProcessor imp = imgProj.getProcessor();
-      double bg = imp.getStatistics().median;
-      flush_close(imgProj);
-      return(bg);
+      return(getChannelStats(img).minProjectionMedian);
+    }
+    
+    
+    /**
+     * Get statistics of a channel, computed on first request and cached until the image is closed
+     */
+    public ChannelStats getChannelStats(ImagePlus img) {
+        ChannelStats stats = statsCache.get(img);
+        if (stats == null) {
+            stats = new ChannelStats(img);
+            statsCache.put(img, stats);
+        }
+        return(stats);
     }
     
     
@@ -398,59 +894,126 @@ public class Tools {
     /**
      * Detect cytoplasm and compute its volume
      */    
-    public ImagePlus findCellsCyto(ImagePlus img, ArrayList<Nucleus> nuclei) {
-        ImagePlus imgIn = new Duplicator().run(img).duplicate();
-        ImagePlus imgTh = gaussian_filter(imgIn, 4, 4);
-        imgTh.setSlice(imgTh.getNSlices()/2);
-        IJ.setAutoThreshold(imgTh, "Huang dark");
-        Prefs.blackBackground = false;
-        IJ.run(imgTh, "Convert to Mask", "method=Huang background=Dark");
-        IJ.run(imgTh, "Median...", "radius=8 stack");
+    public ImagePlus findCellsCyto(ImagePlus img, NucleusTable nuclei) {
+        ImagePlus imgG;
+        try (RunReport.Stage stage = report.stage("cytoGaussian")) {
+            imgG = gaussian_filter(img, CYTO_GAUSSIAN_SIGMA, CYTO_GAUSSIAN_SIGMA);
+        }
+        double threshold;
+        try (RunReport.Stage stage = report.stage("cytoThreshold")) {
+            threshold = (cytoStackHistogram) ? StackThresholder.stackThreshold(getChannelStats(imgG), cytoThMethod) : 
+                    StackThresholder.sliceThreshold(imgG, Math.max(1, imgG.getNSlices()/2), cytoThMethod);
+        }
+        return(cytoMask(imgG, threshold, nuclei));
+    }
+    
+    
+    /**
+     * Cytoplasm mask from the filtered ORF1P channel (closed here) and a threshold level:
+     * binarization, median filter and nuclei removal
+     */
+    public ImagePlus cytoMask(ImagePlus imgG, double threshold, NucleusTable nuclei) {
+        ImagePlus imgTh;
+        try (RunReport.Stage stage = report.stage("cytoMask")) {
+            imgTh = StackThresholder.toMask(imgG, threshold);
+            flush_close(imgG);
+        }
+        try (RunReport.Stage stage = report.stage("cytoMedian")) {
+            BinaryMedianFilter.filter(imgTh, CYTO_MEDIAN_RADIUS);
+        }
 
         ImageHandler imh = ImageHandler.wrap(imgTh);
-        for (Nucleus nucleus : nuclei)
-            nucleus.nucleus.drawObject(imh, 0);
+        for (int row = 0; row < nuclei.size(); row++)
+            nuclei.object(row).drawObject(imh, 0);
         imgTh = imh.getImagePlus();
 
-        flush_close(imgIn);
         return(imgTh);
     }
     
     
     /**
-     * Gaussian filter using CLIJ2
+     * Gaussian filter with the selected backend
+     * (sigmas in pixels along XY and Z)
      */ 
     public ImagePlus gaussian_filter(ImagePlus img, double sizeXY, double sizeZ) {
+        ImagePlus imgG = null;
+        if (!gaussianBackend.equals("CPU"))
+            imgG = gaussian_filter_clij2(img, sizeXY, sizeZ);
+        if (imgG == null)
+            imgG = GaussianFilter3D.filter(img, sizeXY, sizeXY, sizeZ);
+        imgG.setCalibration(cal);
+        return(imgG);
+    }
+    
+    
+    /**
+     * Gaussian filter using CLIJ2, started on first use
+     * (synchronized as the CLIJ2 instance is shared by the images analyzed in parallel)
+     * Returns null if CLIJ2 cannot be started in Auto mode
+     */ 
+    private synchronized ImagePlus gaussian_filter_clij2(ImagePlus img, double sizeXY, double sizeZ) {
+       if (clij2 == null && !clij2Failed) {
+           try {
+               clij2 = CLIJ2.getInstance();
+           } catch (Throwable t) {
+               if (gaussianBackend.equals("CLIJ2"))
+                   throw t;
+               System.out.println("CLIJ2 not available (" + t.getMessage() + "), Gaussian filtering will run on CPU");
+               clij2Failed = true;
+           }
+       }
+       if (clij2 == null)
+           return(null);
        ClearCLBuffer imgCL = clij2.push(img);
        ClearCLBuffer imgCLG = clij2.create(imgCL);
        clij2.gaussianBlur3D(imgCL, imgCLG, sizeXY, sizeXY, sizeZ);
        ImagePlus imgG = clij2.pull(imgCLG);
-       imgG.setCalibration(cal);
        clij2.release(imgCL);
        clij2.release(imgCLG);
        return(imgG);
     } 
     
     
+    /**
+     * Compute cytoplasm volume and ORF1P raw integrated density,
+     * summing mask voxels and masked intensities slice by slice in parallel
+     */
     public double[] computeCytoParameters(ImagePlus mask, ImagePlus img) {
-        ResultsTable rt = new ResultsTable();
-        Analyzer analyzer = new Analyzer(img, Analyzer.AREA+Analyzer.INTEGRATED_DENSITY, rt);
+        return(computeCytoParameters(mask, img, new Rectangle(0, 0, mask.getWidth(), mask.getHeight())));
+    }
+    
+    
+    /**
+     * Compute cytoplasm volume and intensity in the XY region of the stacks
+     */
+    public double[] computeCytoParameters(ImagePlus mask, ImagePlus img, Rectangle region) {
+        ImageStack maskStack = mask.getStack();
+        ImageStack imgStack = img.getStack();
+        int width = mask.getWidth();
+        double[][] sliceParams = new double[mask.getNSlices()][];
+        IntStream.range(0, mask.getNSlices()).parallel().forEach(z -> {
+            byte[] maskPixels = (byte[]) maskStack.getPixels(z+1);
+            ImageProcessor ip = imgStack.getProcessor(z+1);
+            long area = 0;
+            double intSum = 0;
+            for (int y = region.y; y < region.y + region.height; y++) {
+                for (int i = y*width + region.x; i < y*width + region.x + region.width; i++) {
+                    if (maskPixels[i] != 0) {
+                        area++;
+                        intSum += ip.getf(i);
+                    }
+                }
+            }
+            sliceParams[z] = new double[] {area, intSum};
+        });
+        
         double area = 0;
         double intSum = 0;
-        for (int n = 1; n <= mask.getNSlices(); n++) {
-            mask.setSlice(n);
-            IJ.setAutoThreshold(mask, "Default");
-            IJ.run(mask, "Create Selection", "");
-            Roi roi = mask.getRoi();
-            
-            img.setSlice(n);
-            img.setRoi(roi);
-            rt.reset();
-            analyzer.measure();
-            area += rt.getValue("Area", 0); 
-            intSum += rt.getValue("RawIntDen",0);
+        for (double[] params : sliceParams) {
+            area += params[0];
+            intSum += params[1];
         }
-        double[] volInt = {area*cal.pixelDepth, intSum};
+        double[] volInt = {area*cal.pixelWidth*cal.pixelHeight*cal.pixelDepth, intSum};
         return(volInt);
     }
     
@@ -458,20 +1021,8 @@ public class Tools {
     /**
      * Draw results in images
      */
-    public void drawResults(ArrayList<Nucleus> nuclei, ImagePlus imgCyto, ImagePlus img, String imgName, String outDir) {
-        ImageHandler imgNuc = ImageHandler.wrap(new Duplicator().run(img)).createSameDimensions();
-        for (Nucleus nucleus: nuclei)
-            nucleus.nucleus.drawObject(imgNuc);
-        new ImageConverter(imgCyto).convertToGray16();
-        
-        ImagePlus[] imgColors = {null, imgCyto, imgNuc.getImagePlus(), img};
-        ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, true);
-        imgObjects.setCalibration(cal);
-        FileSaver ImgObjectsFile1 = new FileSaver(imgObjects);
-        ImgObjectsFile1.saveAsTiff(outDir + imgName + ".tif");
-        
-        flush_close(imgObjects);
-        imgNuc.closeImagePlus();
+    public void drawResults(NucleusTable nuclei, ImagePlus imgCyto, ImagePlus img, String imgName, String outDir) throws Exception {
+        new OverlayWriter(this, 1).write(nuclei, imgCyto, img, imgName, outDir);
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+package Lamin_ORF1P_Tools;
+
+import ij.process.ImageProcessor;
+
+
+/**
+ * Informative z-range of a stack from a focus score of each plane:
+ * Brenner gradient (mean squared difference between pixels 2 apart along rows),
+ * low for blank and out-of-focus planes
+ * Planes are scored one by one as they are decoded, the range is then cropped with a margin
+ * @author phm
+ */
+public class ZRange {
+    
+    /**
+     * Focus score of one 8, 16 or 32-bit plane
+     */
+    public static double score(ImageProcessor ip) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        if (width < 3)
+            return(0);
+        Object pixels = ip.getPixels();
+        double sum = 0;
+        for (int y = 0; y < height; y++) {
+            int offset = y*width;
+            for (int x = 0; x < width - 2; x++) {
+                double d = value(pixels, offset + x + 2) - value(pixels, offset + x);
+                sum += d*d;
+            }
+        }
+        return(sum/((double) (width - 2)*height));
+    }
+    
+    
+    private static double value(Object pixels, int i) {
+        if (pixels instanceof byte[])
+            return(((byte[]) pixels)[i] & 0xff);
+        if (pixels instanceof short[])
+            return(((short[]) pixels)[i] & 0xffff);
+        return(((float[]) pixels)[i]);
+    }
+    
+    
+    /**
+     * First and last planes (0-based) scoring at least minFraction of the way from the lowest to the highest score,
+     * extended by margin planes on each side
+     */
+    public static int[] range(double[] scores, double minFraction, int margin) {
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (double s : scores) {
+            min = Math.min(min, s);
+            max = Math.max(max, s);
+        }
+        double threshold = min + minFraction*(max - min);
+        int first = 0, last = scores.length - 1;
+        while (first < last && scores[first] < threshold)
+            first++;
+        while (last > first && scores[last] < threshold)
+            last--;
+        return(new int[] {Math.max(0, first - margin), Math.min(scores.length - 1, last + margin)});
+    }
+}
@@ -0,0 +1,70 @@
+"""
+Long-lived Cellpose worker
+Loads the model once, then segments the images requested on stdin
+One JSON request per line, one JSON reply per line prefixed by the worker marker
+"""
+
+import sys
+import json
+import argparse
+import traceback
+import numpy as np
+
+MARKER = "@@cellpose-worker@@"
+
+
+def reply(msg):
+    sys.stdout.write(MARKER + " " + json.dumps(msg) + "\n")
+    sys.stdout.flush()
+
+
+def segment(model, img, req):
+    # same options as the command line: --fast_mode turns off network averaging and augmentation
+    options = {"resample": req.get("resample", False)}
+    if req.get("fast_mode", False):
+        options.update(net_avg=False, augment=False)
+    masks = model.eval(img, channels=req["channels"], diameter=req["diameter"],
+                       flow_threshold=req["flow_threshold"], cellprob_threshold=req["cellprob_threshold"],
+                       stitch_threshold=max(req["stitch_threshold"], 0.0), do_3D=req["do_3D"], **options)[0]
+    return np.asarray(masks).astype(np.uint16)
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument("--model", default="cyto2")
+    parser.add_argument("--gpu", action="store_true")
+    args = parser.parse_args()
+
+    from cellpose import models, io
+    model = models.Cellpose(gpu=args.gpu, model_type=args.model)
+    reply({"status": "ready"})
+
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        try:
+            req = json.loads(line)
+            if req["cmd"] == "quit":
+                reply({"status": "bye"})
+                break
+            if req["cmd"] == "segment_raw":
+                # raw stack shared through a memory-mapped file, labels written back the same way
+                shape = tuple(req["shape"])
+                img = np.memmap(req["input"], dtype=req["dtype"], mode="r", shape=shape)
+                masks = segment(model, np.array(img), req)
+                out = np.memmap(req["output"], dtype=np.uint16, mode="w+", shape=shape)
+                out[:] = masks.reshape(shape)
+                out.flush()
+                del out
+            else:
+                img = io.imread(req["input"])
+                io.imsave(req["output"], segment(model, img, req))
+            reply({"status": "ok"})
+        except Exception as e:
+            traceback.print_exc()
+            reply({"status": "error", "message": str(e)})
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,60 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.filter.RankFilters;
+import ij.process.ByteProcessor;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import org.junit.Test;
+
+
+/**
+ * Binary median filter against the ImageJ median (RankFilters) on random masks
+ * @author phm
+ */
+public class BinaryMedianFilterTest {
+
+    /**
+     * Random 0/255 mask stack, foreground drawn with the given density
+     */
+    private static ImagePlus mask(int width, int height, int depth, double density, long seed) {
+        Random random = new Random(seed);
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            byte[] pixels = new byte[width*height];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (random.nextDouble() < density) ? (byte) 255 : 0;
+            stack.addSlice(new ByteProcessor(width, height, pixels, null));
+        }
+        ImagePlus img = new ImagePlus("mask", stack);
+        img.setDimensions(1, depth, 1);
+        return img;
+    }
+
+
+    private static void assertSameAsRankFilters(int width, int height, double radius, double density, long seed) {
+        ImagePlus img = mask(width, height, 3, density, seed);
+        ImagePlus expected = mask(width, height, 3, density, seed);
+        for (int z = 1; z <= 3; z++)
+            new RankFilters().rank(expected.getStack().getProcessor(z), radius, RankFilters.MEDIAN);
+        BinaryMedianFilter.filter(img, radius);
+        for (int z = 1; z <= 3; z++)
+            assertArrayEquals("radius " + radius + ", slice " + z, (byte[]) expected.getStack().getPixels(z), (byte[]) img.getStack().getPixels(z));
+    }
+
+
+    @Test
+    public void matchesRankFiltersMedian() {
+        long seed = 1;
+        for (double radius : new double[] {0.5, 1, 1.5, 2, 2.5, 3, 4, 8})
+            for (double density : new double[] {0.3, 0.5, 0.7})
+                assertSameAsRankFilters(61, 47, radius, density, seed++);
+    }
+
+
+    @Test
+    public void matchesRankFiltersMedianWithKernelLargerThanImage() {
+        assertSameAsRankFilters(10, 7, 8, 0.5, 42);
+    }
+}
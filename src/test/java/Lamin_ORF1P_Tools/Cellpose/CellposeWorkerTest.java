@@ -0,0 +1,282 @@
+package Lamin_ORF1P_Tools.Cellpose;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * JSON-line protocol of the Cellpose worker (ready, ok, error, EOF) with a stub worker script,
+ * and fallback to a stub Cellpose command line, which only need a python 3 interpreter
+ */
+public class CellposeWorkerTest {
+    
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    
+    private File envDir, stubScript;
+    
+    
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(IJ.isLinux() || IJ.isMacOSX());
+        File python = null;
+        for (String path : new String[] {"/usr/bin/python3", "/usr/local/bin/python3", "/opt/homebrew/bin/python3"})
+            if (new File(path).canExecute())
+                python = new File(path);
+        Assume.assumeTrue("python 3 not found", python != null);
+        
+        // Environment folder whose bin/python is the system python, finding the stub cellpose module
+        File lib = tmp.newFolder("lib");
+        File module = new File(lib, "cellpose");
+        module.mkdir();
+        new File(module, "__init__.py").createNewFile();
+        copyResource("/cellpose_cli_stub.py", new File(module, "__main__.py"));
+        envDir = tmp.newFolder("env");
+        File bin = new File(envDir, "bin");
+        bin.mkdir();
+        File wrapper = new File(bin, "python");
+        Files.write(wrapper.toPath(), ("#!/bin/sh\nPYTHONPATH='" + lib.getAbsolutePath() + "' exec '" + python.getAbsolutePath() + "' \"$@\"\n")
+                .getBytes(StandardCharsets.UTF_8));
+        wrapper.setExecutable(true);
+        stubScript = new File(tmp.getRoot(), "cellpose_worker_stub.py");
+        copyResource("/cellpose_worker_stub.py", stubScript);
+    }
+    
+    
+    private void copyResource(String name, File file) throws IOException {
+        try (InputStream in = getClass().getResourceAsStream(name)) {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    
+    @After
+    public void tearDown() {
+        CellposeWorker.shutdownAll();
+        CellposeWorker.startTimeoutSeconds = 600;
+    }
+    
+    
+    private CellposeTaskSettings settings(String model, int diameter) {
+        return new CellposeTaskSettings(model, 1, diameter, envDir.getAbsolutePath()).useWorker(true)
+                .setWorkerScript(stubScript.getAbsolutePath());
+    }
+    
+    
+    private ImagePlus segment(CellposeWorker worker, CellposeTaskSettings settings, byte[] pixels) throws IOException {
+        ImageStack stack = new ImageStack(pixels.length, 1);
+        stack.addSlice(new ByteProcessor(pixels.length, 1, pixels.clone(), null));
+        ImagePlus imp = new ImagePlus("stack", stack);
+        File input = tmp.newFile();
+        File output = tmp.newFile();
+        CellposeSharedStack.write(imp, input);
+        worker.segmentRaw(input, "uint8", new int[] {1, 1, pixels.length}, output, settings);
+        return CellposeSharedStack.readLabels(output, pixels.length, 1, 1, "labels");
+    }
+    
+    
+    @Test(timeout = 60000)
+    public void segmentsThroughSharedFiles() throws IOException {
+        CellposeTaskSettings settings = settings("cyto2", 30);
+        CellposeWorker worker = CellposeWorker.acquire(settings);
+        try {
+            ImagePlus labels = segment(worker, settings, new byte[] {0, 5, 0, 7});
+            assertArrayEquals(new short[] {0, 1, 0, 1}, (short[]) labels.getStack().getPixels(1));
+        } finally {
+            CellposeWorker.release(settings, worker);
+        }
+        // The released worker is reused
+        CellposeWorker again = CellposeWorker.acquire(settings);
+        assertTrue(again == worker);
+        CellposeWorker.release(settings, again);
+    }
+    
+    
+    @Test(timeout = 60000)
+    public void errorReplyKeepsWorker() throws IOException {
+        CellposeTaskSettings settings = settings("cyto2", -1);
+        CellposeWorker worker = CellposeWorker.acquire(settings);
+        try {
+            segment(worker, settings, new byte[] {1});
+            fail("error reply not reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("bad diameter"));
+        } finally {
+            CellposeWorker.release(settings, worker);
+        }
+        assertTrue(worker.isAlive());
+        CellposeWorker again = CellposeWorker.acquire(settings);
+        assertTrue(again == worker);
+        CellposeWorker.release(settings, again);
+    }
+    
+    
+    @Test(timeout = 60000)
+    public void deadWorkerIsReplaced() throws IOException {
+        CellposeTaskSettings settings = settings("cyto2", 999);
+        CellposeWorker worker = CellposeWorker.acquire(settings);
+        try {
+            segment(worker, settings, new byte[] {1});
+            fail("worker exit not reported");
+        } catch (IOException e) {
+            // EOF before reply
+        } finally {
+            CellposeWorker.release(settings, worker);
+        }
+        assertFalse(worker.isAlive());
+        CellposeWorker again = CellposeWorker.acquire(settings);
+        assertTrue(again != worker);
+        CellposeWorker.release(settings, again);
+    }
+    
+    
+    @Test(timeout = 60000)
+    public void failedStartIsRemembered() throws IOException {
+        CellposeTaskSettings settings = settings("fail", 30);
+        try {
+            CellposeWorker.acquire(settings);
+            fail("start failure not reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("failed to start"));
+        }
+        // No new process is started for the same settings
+        long start = System.currentTimeMillis();
+        try {
+            CellposeWorker.acquire(settings);
+            fail("start failure not remembered");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("earlier"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+    
+    
+    @Test(timeout = 60000)
+    public void startTimesOut() {
+        CellposeWorker.startTimeoutSeconds = 2;
+        try {
+            CellposeWorker.acquire(settings("hang", 30));
+            fail("start timeout not reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("no answer"));
+        }
+    }
+    
+    
+    @Test(timeout = 60000)
+    public void hungRequestDiscardsWorker() throws IOException {
+        CellposeTaskSettings settings = settings("cyto2", 998).setRequestTimeout(1, 0);
+        CellposeWorker worker = CellposeWorker.acquire(settings);
+        try {
+            segment(worker, settings, new byte[] {1});
+            fail("request timeout not reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("no answer"));
+        } finally {
+            CellposeWorker.release(settings, worker);
+        }
+        assertFalse(worker.isAlive());
+        CellposeWorker again = CellposeWorker.acquire(settings);
+        assertTrue(again != worker);
+        CellposeWorker.release(settings, again);
+    }
+    
+    
+    @Test
+    public void requestTimeoutGrowsWithStackSize() {
+        CellposeTaskSettings settings = settings("cyto2", 30).setRequestTimeout(100, 10);
+        assertEquals(100, settings.requestTimeoutSeconds(0));
+        assertEquals(150, settings.requestTimeoutSeconds(5000000));
+    }
+    
+    
+    private static ImagePlus stack(byte[] pixels) {
+        ImageStack stack = new ImageStack(pixels.length, 1);
+        stack.addSlice(new ByteProcessor(pixels.length, 1, pixels.clone(), null));
+        return new ImagePlus("stack", stack);
+    }
+    
+    
+    @Test(timeout = 60000)
+    public void failedWorkerFallsBackToCommandLine() {
+        CellposeTaskSettings settings = settings("fail", 30);
+        ImagePlus imp = stack(new byte[] {0, 5, 0, 7});
+        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imp);
+        ImagePlus labels = cellpose.run();
+        assertNotNull(labels);
+        assertArrayEquals(new short[] {0, 1, 0, 1}, (short[]) labels.getStack().getPixels(1));
+        
+        // The labels are cached under the command line key, the caller's settings are unchanged
+        assertFalse(cellpose.getSettings().useWorker);
+        assertTrue(settings.useWorker);
+        String workerKey = CellposeLabelCache.key(imp, settings, 1);
+        String usedKey = CellposeLabelCache.usedKey(workerKey, imp, settings, cellpose.getSettings(), 1);
+        assertFalse(usedKey.equals(workerKey));
+        assertEquals(CellposeLabelCache.key(imp, settings.copy().useWorker(false), 1), usedKey);
+    }
+    
+    
+    @Test(timeout = 60000)
+    public void batchReportsCommandLineFallback() throws IOException {
+        CellposeTaskSettings settings = settings("fail", 30).setNbWorkers(2);
+        List<ImagePlus> imps = Arrays.asList(stack(new byte[] {1, 0}), stack(new byte[] {0, 1}), stack(new byte[] {1, 1}));
+        CellposeSegmentImgPlusBatch batch = new CellposeSegmentImgPlusBatch(settings, imps);
+        List<ImagePlus> labels = batch.run();
+        assertArrayEquals(new short[] {0, 1}, (short[]) labels.get(1).getStack().getPixels(1));
+        assertEquals(3, batch.getSettings().size());
+        for (CellposeTaskSettings used : batch.getSettings())
+            assertFalse(used.useWorker);
+        assertTrue(settings.useWorker);
+    }
+    
+    
+    @Test(timeout = 60000)
+    public void hungWorkerFallsBackToCommandLine() {
+        CellposeTaskSettings settings = settings("cyto2", 998).setRequestTimeout(1, 0);
+        ImagePlus imp = stack(new byte[] {3, 0, 9});
+        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, imp);
+        ImagePlus labels = cellpose.run();
+        assertNotNull(labels);
+        assertArrayEquals(new short[] {1, 0, 1}, (short[]) labels.getStack().getPixels(1));
+        assertFalse(cellpose.getSettings().useWorker);
+    }
+    
+    
+    @Test
+    public void forwardsCommandLineOptions() {
+        CellposeTaskSettings settings = settings("cyto2", 30).useFastMode(true).useResample(true).setVersion("0.7");
+        String options = CellposeWorker.evalOptions(settings);
+        assertTrue(options.contains("\"fast_mode\": true"));
+        assertTrue(options.contains("\"resample\": true"));
+        // Cellpose 2.0 command line ignores --resample
+        assertTrue(CellposeWorker.evalOptions(settings.setVersion("2.0")).contains("\"resample\": false"));
+    }
+    
+    
+    @Test(expected = UnsupportedOperationException.class)
+    public void refusesOmniposeOptions() {
+        CellposeWorker.checkSupported(settings("cyto2", 30).setOmni(true));
+    }
+}
@@ -0,0 +1,132 @@
+package Lamin_ORF1P_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.Analyzer;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+
+/**
+ * Cytoplasm volume and intensity against the previous per-slice selection and Analyzer measure,
+ * on a synthetic mask, for the whole image and for a region
+ * @author phm
+ */
+public class CytoParametersTest {
+
+    private static final int WIDTH = 70, HEIGHT = 50, DEPTH = 6;
+
+
+    private static Tools tools() {
+        Tools tools = new Tools();
+        tools.cal.pixelWidth = tools.cal.pixelHeight = 0.2;
+        tools.cal.pixelDepth = 0.5;
+        tools.pixVol = (float) (tools.cal.pixelWidth*tools.cal.pixelHeight*tools.cal.pixelDepth);
+        return tools;
+    }
+
+
+    /**
+     * 0/255 mask with an inverted LUT, as Convert to Mask made it for the cytoplasm:
+     * rings and random specks, every slice with foreground and background
+     */
+    private static ImagePlus mask(long seed) {
+        Random random = new Random(seed);
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            byte[] pixels = new byte[WIDTH*HEIGHT];
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++) {
+                    double d = Math.hypot(x - 35 - z, y - 25);
+                    boolean fg = (d > 8 && d < 18 + z) || random.nextDouble() < 0.05;
+                    pixels[y*WIDTH + x] = fg ? (byte) 255 : 0;
+                }
+            ByteProcessor ip = new ByteProcessor(WIDTH, HEIGHT, pixels, null);
+            ip.invertLut();
+            stack.addSlice(ip);
+        }
+        ImagePlus img = new ImagePlus("mask", stack);
+        img.setDimensions(1, DEPTH, 1);
+        return img;
+    }
+
+
+    private static ImagePlus intensities(Tools tools) {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            short[] pixels = new short[WIDTH*HEIGHT];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (short) (200 + (i*37 + z*101) % 3000);
+            stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+        }
+        ImagePlus img = new ImagePlus("orf1p", stack);
+        img.setDimensions(1, DEPTH, 1);
+        img.setCalibration(tools.cal);
+        return img;
+    }
+
+
+    /**
+     * Previous measure: selection of the mask foreground on each slice, area and RawIntDen measured in the image
+     */
+    private static double[] selectionMeasure(ImagePlus mask, ImagePlus img, Tools tools) {
+        ResultsTable rt = new ResultsTable();
+        Analyzer analyzer = new Analyzer(img, Analyzer.AREA+Analyzer.INTEGRATED_DENSITY, rt);
+        double area = 0;
+        double intSum = 0;
+        for (int n = 1; n <= mask.getNSlices(); n++) {
+            mask.setSlice(n);
+            IJ.setAutoThreshold(mask, "Default");
+            IJ.run(mask, "Create Selection", "");
+            Roi roi = mask.getRoi();
+
+            img.setSlice(n);
+            img.setRoi(roi);
+            rt.reset();
+            analyzer.measure();
+            area += rt.getValue("Area", 0);
+            intSum += rt.getValue("RawIntDen", 0);
+        }
+        return new double[] {area*tools.cal.pixelDepth, intSum};
+    }
+
+
+    private static ImagePlus crop(ImagePlus img, Rectangle r) {
+        ImagePlus cropped = new ImagePlus(img.getTitle(), img.getStack().crop(r.x, r.y, 0, r.width, r.height, img.getStackSize()));
+        cropped.setDimensions(1, img.getStackSize(), 1);
+        cropped.setCalibration(img.getCalibration());
+        return cropped;
+    }
+
+
+    private static void assertSameParams(double[] expected, double[] actual) {
+        assertEquals("volume", expected[0], actual[0], 1e-9*expected[0]);
+        assertEquals("intensity", expected[1], actual[1], 0);
+    }
+
+
+    @Test
+    public void matchesSelectionMeasure() {
+        Tools tools = tools();
+        double[] expected = selectionMeasure(mask(1), intensities(tools), tools);
+        double[] actual = tools.computeCytoParameters(mask(1), intensities(tools));
+        assertSameParams(expected, actual);
+    }
+
+
+    @Test
+    public void regionMatchesSelectionMeasureOfCroppedStacks() {
+        Tools tools = tools();
+        Rectangle region = new Rectangle(13, 7, 40, 30);
+        double[] expected = selectionMeasure(crop(mask(2), region), crop(intensities(tools), region), tools);
+        double[] actual = tools.computeCytoParameters(mask(2), intensities(tools), region);
+        assertSameParams(expected, actual);
+    }
+}
@@ -0,0 +1,90 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import net.haesleinhuepf.clij2.CLIJ2;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * CPU Gaussian filter against CLIJ2 gaussianBlur3D on a small 16-bit stack,
+ * skipped where CLIJ2 cannot find an OpenCL device
+ * @author phm
+ */
+public class GaussianFilter3DTest {
+
+    @Before
+    public void needsClij2() {
+        try {
+            Assume.assumeTrue("No OpenCL device", CLIJ2.getInstance() != null);
+        } catch (Throwable t) {
+            Assume.assumeNoException("CLIJ2 not available", t);
+        }
+    }
+
+
+    /**
+     * Spots and a gradient on a textured background, values up to 4000
+     */
+    private static ImagePlus reference(int width, int height, int depth) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            short[] pixels = new short[width*height];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++) {
+                    int v = 100 + 10*x + (x*7 + y*13 + z*3) % 50;
+                    if ((x/8 + y/8 + z/3) % 3 == 0)
+                        v += 3000;
+                    pixels[y*width + x] = (short) v;
+                }
+            stack.addSlice(new ShortProcessor(width, height, pixels, null));
+        }
+        ImagePlus img = new ImagePlus("reference", stack);
+        img.setDimensions(1, depth, 1);
+        return img;
+    }
+
+
+    private static void assertSameAsClij2(double sigmaXY, double sigmaZ) {
+        ImagePlus img = reference(48, 40, 12);
+        Tools tools = new Tools();
+        tools.gaussianBackend = "CLIJ2";
+        ImagePlus expected = tools.gaussian_filter(img, sigmaXY, sigmaZ);
+        ImagePlus actual = GaussianFilter3D.filter(img, sigmaXY, sigmaXY, sigmaZ);
+
+        assertEquals(expected.getStackSize(), actual.getStackSize());
+        assertEquals(16, actual.getBitDepth());
+        double maxDiff = 0, sumDiff = 0;
+        int n = 0;
+        for (int z = 1; z <= img.getStackSize(); z++) {
+            short[] e = (short[]) expected.getStack().getPixels(z);
+            short[] a = (short[]) actual.getStack().getPixels(z);
+            for (int i = 0; i < e.length; i++) {
+                double diff = Math.abs((e[i] & 0xffff) - (a[i] & 0xffff));
+                maxDiff = Math.max(maxDiff, diff);
+                sumDiff += diff;
+                n++;
+            }
+        }
+        // Kernels are cut at slightly different widths, values are truncated to integers on both sides
+        assertTrue("max difference " + maxDiff, maxDiff <= 40);
+        assertTrue("mean difference " + sumDiff/n, sumDiff/n <= 2);
+    }
+
+
+    @Test
+    public void matchesClij2() {
+        assertSameAsClij2(2, 1);
+    }
+
+
+    @Test
+    public void matchesClij2WithCytoplasmSigma() {
+        assertSameAsClij2(Tools.CYTO_GAUSSIAN_SIGMA, Tools.CYTO_GAUSSIAN_SIGMA);
+    }
+}
@@ -0,0 +1,104 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.measurements.MeasureVolume;
+import mcib3d.image3d.ImageHandler;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+
+/**
+ * Label filtering against the previous population filters (z filter, size filter, then resetLabels)
+ * on a synthetic label stack with objects too small, too large, on a single plane, and labels out of order
+ * @author phm
+ */
+public class LabelScannerTest {
+
+    private static final int WIDTH = 80, HEIGHT = 60, DEPTH = 8;
+    private static final double VOX_VOL = 0.2*0.2*0.5;
+    // Boxes: label, x, y, z, width, height, depth
+    private static final int[][] BOXES = {
+        {9, 2, 2, 1, 10, 10, 3},     // kept
+        {3, 20, 2, 0, 2, 2, 2},      // too small
+        {12, 40, 2, 2, 12, 13, 1},   // single plane
+        {5, 60, 2, 0, 18, 20, 8},    // too large
+        {2, 2, 30, 3, 8, 9, 4},      // kept
+        {7, 20, 30, 0, 15, 6, 2},    // kept
+        {30, 40, 30, 5, 3, 3, 1},    // single plane and too small
+        {4, 50, 40, 1, 6, 7, 5}};    // kept
+    private static final double MIN_VOL = 3, MAX_VOL = 50;
+
+
+    private static ImagePlus labels() {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            short[] pixels = new short[WIDTH*HEIGHT];
+            for (int[] b : BOXES)
+                if (z >= b[3] && z < b[3] + b[6])
+                    for (int y = b[2]; y < b[2] + b[5]; y++)
+                        for (int x = b[1]; x < b[1] + b[4]; x++)
+                            pixels[y*WIDTH + x] = (short) b[0];
+            stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+        }
+        ImagePlus img = new ImagePlus("labels", stack);
+        img.setDimensions(1, DEPTH, 1);
+        Calibration cal = new Calibration();
+        cal.pixelWidth = cal.pixelHeight = 0.2;
+        cal.pixelDepth = 0.5;
+        img.setCalibration(cal);
+        return img;
+    }
+
+
+    /**
+     * Labels kept by the population filters that the scanner replaced, drawn after resetLabels
+     */
+    private static ImagePlus populationFilters(ImagePlus labels, boolean zFilter) {
+        ImageHandler imh = ImageHandler.wrap(labels);
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(imh);
+        if (zFilter) {
+            Objects3DIntPopulation popZ = new Objects3DIntPopulation();
+            for (Object3DInt obj : pop.getObjects3DInt())
+                if (obj.getBoundingBox().zmax != obj.getBoundingBox().zmin)
+                    popZ.addObject(obj);
+            pop = popZ;
+        }
+        pop.getObjects3DInt().removeIf(p -> (new MeasureVolume(p).getVolumeUnit() < MIN_VOL) || (new MeasureVolume(p).getVolumeUnit() > MAX_VOL));
+        pop.resetLabels();
+        ImageHandler drawn = imh.createSameDimensions();
+        for (Object3DInt obj : pop.getObjects3DInt())
+            obj.drawObject(drawn, obj.getLabel());
+        return drawn.getImagePlus();
+    }
+
+
+    private static void assertSameAsPopulationFilters(boolean zFilter, int expectedKept) {
+        ImagePlus expected = populationFilters(labels(), zFilter);
+        ImagePlus actual = labels();
+        LabelScanner scanner = new LabelScanner(actual);
+        assertEquals(BOXES.length, scanner.nbLabels);
+        int kept = scanner.filter(zFilter, MIN_VOL, MAX_VOL, VOX_VOL);
+        assertEquals(expectedKept, kept);
+        for (int z = 1; z <= DEPTH; z++)
+            assertArrayEquals("slice " + z, (short[]) expected.getStack().getPixels(z), (short[]) actual.getStack().getPixels(z));
+    }
+
+
+    @Test
+    public void matchesPopulationFilters() {
+        assertSameAsPopulationFilters(true, 4);
+    }
+
+
+    @Test
+    public void matchesPopulationFiltersWithoutZFilter() {
+        // The single-plane object of label 12 is then kept
+        assertSameAsPopulationFilters(false, 5);
+    }
+}
@@ -0,0 +1,134 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.measurements.MeasureCompactness;
+import mcib3d.geom2.measurements.MeasureEllipsoid;
+import mcib3d.geom2.measurements.MeasureIntensity;
+import mcib3d.geom2.measurements.MeasureVolume;
+import mcib3d.image3d.ImageHandler;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+
+/**
+ * Nuclei measures against the mcib3d measures of each nucleus,
+ * on synthetic ellipsoids and irregular nucleus-like objects with anisotropic calibration
+ * @author phm
+ */
+public class NucleusMeasuresTest {
+
+    private static final int WIDTH = 96, HEIGHT = 64, DEPTH = 14;
+    // Centers and semi-axes (pixels) of the objects: sphere, prolate, oblate, tilted, lobed
+    private static final double[][] SHAPES = {
+        {16, 16, 7, 9, 9, 4}, {48, 16, 7, 14, 6, 3}, {80, 16, 7, 11, 11, 2},
+        {20, 46, 6, 12, 7, 5}, {60, 46, 7, 16, 10, 5}};
+
+
+    private static Tools tools() {
+        Tools tools = new Tools();
+        tools.cal.pixelWidth = tools.cal.pixelHeight = 0.1;
+        tools.cal.pixelDepth = 0.3;
+        tools.pixVol = (float) (tools.cal.pixelWidth*tools.cal.pixelHeight*tools.cal.pixelDepth);
+        return tools;
+    }
+
+
+    /**
+     * Whether a voxel is inside shape s: the 4th is tilted in xy, the 5th has a lobed outline
+     */
+    private static boolean inside(int s, int x, int y, int z) {
+        double[] c = SHAPES[s];
+        double dx = x - c[0], dy = y - c[1], dz = z - c[2];
+        if (s == 3) {
+            double rx = 0.8*dx + 0.6*dy, ry = -0.6*dx + 0.8*dy;
+            dx = rx;
+            dy = ry;
+        }
+        double r = 1;
+        if (s == 4)
+            r = 1 + 0.2*Math.cos(3*Math.atan2(dy, dx)) + 0.05*Math.sin(5*z);
+        return dx*dx/(c[3]*c[3]) + dy*dy/(c[4]*c[4]) + dz*dz/(c[5]*c[5]) <= r*r;
+    }
+
+
+    private static ImagePlus labels(Tools tools) {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            short[] pixels = new short[WIDTH*HEIGHT];
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++)
+                    for (int s = 0; s < SHAPES.length; s++)
+                        if (inside(s, x, y, z))
+                            pixels[y*WIDTH + x] = (short) (s + 1);
+            stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+        }
+        ImagePlus img = new ImagePlus("labels", stack);
+        img.setCalibration(tools.cal);
+        return img;
+    }
+
+
+    /**
+     * Textured 16-bit intensities, values up to 60000
+     */
+    private static ImagePlus intensities(int seed) {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            short[] pixels = new short[WIDTH*HEIGHT];
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++)
+                    pixels[y*WIDTH + x] = (short) (100 + (x*(7 + seed) + y*13 + z*31)*97 % 60000);
+            stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+        }
+        return new ImagePlus("intensities", stack);
+    }
+
+
+    private void assertSameAsMcib3d(boolean withLamin) {
+        Tools tools = tools();
+        ImageHandler imhLabels = ImageHandler.wrap(labels(tools));
+        ArrayList<Object3DInt> objects = new ArrayList<>(new Objects3DIntPopulation(imhLabels).getObjects3DInt());
+        objects.sort((o1, o2) -> Float.compare(o1.getLabel(), o2.getLabel()));
+        NucleusTable nuclei = new NucleusTable(objects);
+        ImageHandler imhORF1P = ImageHandler.wrap(intensities(0));
+        ImageHandler imhLamin = withLamin ? ImageHandler.wrap(intensities(5)) : null;
+        double bgORF1P = 120, bgLamin = 80;
+
+        tools.measureNuclei(nuclei, imhORF1P, imhLamin, bgORF1P, bgLamin);
+
+        assertEquals(SHAPES.length, nuclei.size());
+        for (int row = 0; row < nuclei.size(); row++) {
+            Object3DInt obj = objects.get(row);
+            double vol = new MeasureVolume(obj).getVolumeUnit();
+            double orf1p = new MeasureIntensity(obj, imhORF1P).getValueMeasurement(MeasureIntensity.INTENSITY_SUM) - bgORF1P*vol/tools.pixVol;
+            double lamin = withLamin ? new MeasureIntensity(obj, imhLamin).getValueMeasurement(MeasureIntensity.INTENSITY_SUM) - bgLamin*vol/tools.pixVol : 0;
+            String msg = "nucleus " + (row + 1);
+            assertEquals(msg, obj.getLabel(), nuclei.get(row, NucleusTable.Column.INDEX), 0);
+            assertEquals(msg, vol, nuclei.get(row, NucleusTable.Column.VOLUME), 0);
+            assertEquals(msg, new MeasureCompactness(obj).getValueMeasurement(MeasureCompactness.COMP_CORRECTED), nuclei.get(row, NucleusTable.Column.COMPACTNESS), 0);
+            assertEquals(msg, new MeasureCompactness(obj).getValueMeasurement(MeasureCompactness.SPHER_CORRECTED), nuclei.get(row, NucleusTable.Column.SPHERICITY), 0);
+            assertEquals(msg, new MeasureEllipsoid(obj).getValueMeasurement(MeasureEllipsoid.ELL_ELONGATION), nuclei.get(row, NucleusTable.Column.ELONGATION), 0);
+            assertEquals(msg, new MeasureEllipsoid(obj).getValueMeasurement(MeasureEllipsoid.ELL_FLATNESS), nuclei.get(row, NucleusTable.Column.FLATNESS), 0);
+            assertEquals(msg, orf1p, nuclei.get(row, NucleusTable.Column.ORF1P_INT), 0);
+            assertEquals(msg, lamin, nuclei.get(row, NucleusTable.Column.LAMIN_INT), 0);
+        }
+        imhLabels.closeImagePlus();
+    }
+
+
+    @Test
+    public void matchesMcib3dMeasures() {
+        assertSameAsMcib3d(true);
+    }
+
+
+    @Test
+    public void matchesMcib3dMeasuresWithoutLamin() {
+        assertSameAsMcib3d(false);
+    }
+}
@@ -0,0 +1,80 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+
+/**
+ * Nuclei size estimate on synthetic 16-bit stacks of discs of known diameter
+ * @author phm
+ */
+public class NucleusScaleTest {
+    
+    /**
+     * Stack of discs of the given diameter on a regular grid, above background values up to 16-bit range
+     */
+    static ImagePlus discs(int width, int height, int depth, int diameter, int background, int signal) {
+        ImageStack stack = new ImageStack(width, height);
+        double r = diameter/2.0;
+        int step = 2*diameter;
+        for (int z = 0; z < depth; z++) {
+            short[] pixels = new short[width*height];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++) {
+                    double dx = (x % step) - step/2.0 + 0.5;
+                    double dy = (y % step) - step/2.0 + 0.5;
+                    // Signal fades in the top and bottom planes, noise-like texture in the background
+                    int v = background + ((x*7 + y*13 + z*3) % 11);
+                    if (dx*dx + dy*dy <= r*r)
+                        v = (z == 0 || z == depth - 1) ? signal/4 : signal;
+                    pixels[y*width + x] = (short) v;
+                }
+            stack.addSlice(new ShortProcessor(width, height, pixels, null));
+        }
+        ImagePlus img = new ImagePlus("discs", stack);
+        img.setDimensions(1, depth, 1);
+        return img;
+    }
+    
+    
+    @Test
+    public void measuresDiscDiameterOn16bitStack() {
+        ImagePlus img = discs(320, 320, 5, 20, 1000, 12000);
+        double diameter = NucleusScale.medianDiameter(img, 1);
+        assertEquals(20, diameter, 1.5);
+    }
+    
+    
+    @Test
+    public void measuresDiscDiameterOnBinnedProjection() {
+        ImagePlus img = discs(320, 320, 5, 20, 1000, 12000);
+        double diameter = NucleusScale.medianDiameter(img, 2);
+        assertEquals(20, diameter, 3);
+    }
+    
+    
+    @Test
+    public void measuresDiscDiameterWithHighBackground() {
+        // Values far above 255, histogram bins must follow the projection range
+        ImagePlus img = discs(320, 320, 3, 30, 40000, 60000);
+        double diameter = NucleusScale.medianDiameter(img, 1);
+        assertEquals(30, diameter, 2);
+    }
+    
+    
+    @Test
+    public void returnsNaNOnFlatImage() {
+        ImageStack stack = new ImageStack(64, 64);
+        for (int z = 0; z < 3; z++) {
+            short[] pixels = new short[64*64];
+            Arrays.fill(pixels, (short) 500);
+            stack.addSlice(new ShortProcessor(64, 64, pixels, null));
+        }
+        assertTrue(Double.isNaN(NucleusScale.medianDiameter(new ImagePlus("flat", stack), 1)));
+    }
+}
@@ -0,0 +1,99 @@
+package Lamin_ORF1P_Tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import org.junit.Test;
+
+
+/**
+ * Middle-slice threshold and mask against the ImageJ macro path
+ * (setAutoThreshold method dark, then Convert to Mask) on 8 and 16-bit stacks
+ * @author phm
+ */
+public class StackThresholderTest {
+
+    private static final int WIDTH = 64, HEIGHT = 48, DEPTH = 7;
+
+
+    /**
+     * Blobs on a noisy background, brighter towards the middle slice;
+     * every slice holds the same min and max values, so that the 16-bit display range is the same on all slices
+     */
+    private static ImagePlus stack(boolean bytes, long seed) {
+        Random random = new Random(seed);
+        int min = bytes ? 3 : 180, max = bytes ? 250 : 41000;
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            double gain = 1 - 0.1*Math.abs(z - DEPTH/2);
+            int[] values = new int[WIDTH*HEIGHT];
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++) {
+                    double v = min + 0.08*(max - min)*random.nextDouble();
+                    double dx = (x % 16) - 8, dy = (y % 16) - 8;
+                    if (dx*dx + dy*dy < 30)
+                        v += gain*0.6*(max - min)*(1 - (dx*dx + dy*dy)/30) + 0.1*(max - min)*random.nextDouble();
+                    values[y*WIDTH + x] = (int) Math.max(min, Math.min(max, v));
+                }
+            values[0] = min;
+            values[1] = max;
+            if (bytes) {
+                byte[] pixels = new byte[values.length];
+                for (int i = 0; i < values.length; i++)
+                    pixels[i] = (byte) values[i];
+                stack.addSlice(new ByteProcessor(WIDTH, HEIGHT, pixels, null));
+            } else {
+                short[] pixels = new short[values.length];
+                for (int i = 0; i < values.length; i++)
+                    pixels[i] = (short) values[i];
+                stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+            }
+        }
+        ImagePlus img = new ImagePlus("stack", stack);
+        img.setDimensions(1, DEPTH, 1);
+        return img;
+    }
+
+
+    private static void assertSameAsMacro(boolean bytes, String method, long seed) {
+        ImagePlus img = stack(bytes, seed);
+        int middle = img.getNSlices()/2;
+        ImagePlus actual = StackThresholder.toMask(img, StackThresholder.sliceThreshold(img, middle, method));
+
+        ImagePlus expected = stack(bytes, seed);
+        expected.setSlice(middle);
+        IJ.setAutoThreshold(expected, method + " dark");
+        boolean blackBackground = Prefs.blackBackground;
+        try {
+            Prefs.blackBackground = false;
+            IJ.run(expected, "Convert to Mask", "method=" + method + " background=Dark");
+        } finally {
+            Prefs.blackBackground = blackBackground;
+        }
+
+        for (int z = 1; z <= DEPTH; z++)
+            assertArrayEquals(method + (bytes ? " 8-bit" : " 16-bit") + ", slice " + z,
+                    (byte[]) expected.getStack().getPixels(z), (byte[]) actual.getStack().getPixels(z));
+    }
+
+
+    @Test
+    public void matchesMacroOn8BitStacks() {
+        long seed = 1;
+        for (String method : new String[] {"Huang", "Otsu", "Li"})
+            assertSameAsMacro(true, method, seed++);
+    }
+
+
+    @Test
+    public void matchesMacroOn16BitStacks() {
+        long seed = 10;
+        for (String method : new String[] {"Huang", "Otsu", "Li"})
+            assertSameAsMacro(false, method, seed++);
+    }
+}
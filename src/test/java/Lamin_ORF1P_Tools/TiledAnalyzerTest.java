@@ -0,0 +1,170 @@
+package Lamin_ORF1P_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import loci.plugins.util.ImageProcessorReader;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+import static org.junit.Assert.assertEquals;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tiled analysis against the whole-image analysis of a small synthetic field,
+ * nuclei found by thresholding instead of Cellpose
+ * @author phm
+ */
+public class TiledAnalyzerTest {
+
+    private static final int WIDTH = 160, HEIGHT = 160, DEPTH = 6;
+    private static final int RADIUS = 6;
+    // Nuclei centers, on the borders of tiles of 64 and 24 pixels among others
+    private static final int[] CENTERS = {20, 48, 64, 100, 128, 145};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    /**
+     * Field of 2 channels: nuclei discs in planes 1 to 4, and ORF1P rings around them
+     */
+    private File field() throws Exception {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            short[] nucleus = new short[WIDTH*HEIGHT];
+            short[] orf1p = new short[WIDTH*HEIGHT];
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++) {
+                    double d = Double.MAX_VALUE;
+                    for (int cy : CENTERS)
+                        for (int cx : CENTERS)
+                            d = Math.min(d, Math.hypot(x - cx, y - cy));
+                    boolean inNucleus = d <= RADIUS && z >= 1 && z <= 4;
+                    nucleus[y*WIDTH + x] = (short) (inNucleus ? 3000 : 200 + (x*7 + y*13 + z*3) % 11);
+                    int v = 300 + (x*5 + y*11 + z*7) % 13;
+                    if (inNucleus)
+                        v = 800;
+                    else if (d <= 2*RADIUS)
+                        v = 1500 + (x + y) % 7;
+                    orf1p[y*WIDTH + x] = (short) v;
+                }
+            stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, nucleus, null));
+            stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, orf1p, null));
+        }
+        ImagePlus img = new ImagePlus("field", stack);
+        img.setDimensions(2, DEPTH, 1);
+        img.setOpenAsHyperStack(true);
+        File file = new File(folder.getRoot(), "field.tif");
+        new FileSaver(img).saveAsTiffStack(file.getPath());
+        return file;
+    }
+
+
+    private static Tools tools(int tileSize, int tileHalo) {
+        Tools tools = new Tools();
+        tools.cal.pixelWidth = tools.cal.pixelHeight = 0.2;
+        tools.cal.pixelDepth = 0.5;
+        tools.pixVol = (float) (tools.cal.pixelWidth*tools.cal.pixelHeight*tools.cal.pixelDepth);
+        tools.gaussianBackend = "CPU";
+        tools.saveOverlay = false;
+        tools.tileSize = tileSize;
+        tools.tileHalo = tileHalo;
+        return tools;
+    }
+
+
+    /**
+     * Nuclei as the 6-connected components above a fixed threshold
+     */
+    private static NucleusTable detect(ImagePlus img, Tools tools) {
+        int width = img.getWidth(), height = img.getHeight(), depth = img.getNSlices();
+        short[][] labels = new short[depth][width*height];
+        int label = 0;
+        ArrayDeque<int[]> queue = new ArrayDeque<>();
+        for (int z = 0; z < depth; z++)
+            for (int i = 0; i < width*height; i++) {
+                if (labels[z][i] != 0 || !inside(img, z, i))
+                    continue;
+                labels[z][i] = (short) ++label;
+                queue.add(new int[] {i % width, i/width, z});
+                while (!queue.isEmpty()) {
+                    int[] p = queue.poll();
+                    int[][] neighbors = {{p[0]-1, p[1], p[2]}, {p[0]+1, p[1], p[2]}, {p[0], p[1]-1, p[2]},
+                            {p[0], p[1]+1, p[2]}, {p[0], p[1], p[2]-1}, {p[0], p[1], p[2]+1}};
+                    for (int[] n : neighbors) {
+                        if (n[0] < 0 || n[0] >= width || n[1] < 0 || n[1] >= height || n[2] < 0 || n[2] >= depth)
+                            continue;
+                        int j = n[1]*width + n[0];
+                        if (labels[n[2]][j] == 0 && inside(img, n[2], j)) {
+                            labels[n[2]][j] = (short) label;
+                            queue.add(n);
+                        }
+                    }
+                }
+            }
+        ImageStack stack = new ImageStack(width, height);
+        for (short[] pixels : labels)
+            stack.addSlice(new ShortProcessor(width, height, pixels, null));
+        ImagePlus imgLabels = new ImagePlus("labels", stack);
+        imgLabels.setCalibration(tools.cal);
+        ImageHandler imh = ImageHandler.wrap(imgLabels);
+        ArrayList<Object3DInt> objects = new ArrayList<>(new Objects3DIntPopulation(imh).getObjects3DInt());
+        objects.sort((o1, o2) -> Float.compare(o1.getLabel(), o2.getLabel()));
+        imh.closeImagePlus();
+        return new NucleusTable(objects);
+    }
+
+
+    private static boolean inside(ImagePlus img, int z, int i) {
+        return (((short[]) img.getStack().getPixels(z + 1))[i] & 0xffff) > 1000;
+    }
+
+
+    private void assertTiledMatchesWholeImage(int tileSize, int tileHalo) throws Exception {
+        File file = field();
+
+        Tools whole = tools(0, 0);
+        ImageProcessorReader reader = whole.createReader(file.getPath());
+        HashMap<String, Double> expected;
+        try {
+            ImagePlus imgNucleus = whole.openChannel(reader, 0, "nucleus");
+            NucleusTable nuclei = detect(imgNucleus, whole);
+            ImagePlus imgORF1P = whole.openChannel(reader, 1, "orf1p");
+            ImagePlus imgCyto = whole.findCellsCyto(imgORF1P, nuclei);
+            expected = whole.tagCells(imgORF1P, null, imgCyto, nuclei);
+        } finally {
+            reader.close();
+        }
+
+        Tools tiled = tools(tileSize, tileHalo);
+        TiledAnalyzer analyzer = new TiledAnalyzer(tiled);
+        analyzer.detector = img -> detect(img, tiled);
+        ImageResults results = analyzer.analyze(file.getPath(), new String[] {"0", "1"}, new String[] {"0", "None", "1"},
+                folder.newFolder().getPath() + File.separator);
+
+        assertEquals(CENTERS.length*CENTERS.length, expected.get("nucNb"), 0);
+        for (String key : expected.keySet())
+            assertEquals(key, expected.get(key), results.globalParams.get(key), 1e-6*Math.max(1, Math.abs(expected.get(key))));
+    }
+
+
+    @Test
+    public void tiledRunMatchesWholeImage() throws Exception {
+        assertTiledMatchesWholeImage(64, 32);
+    }
+
+
+    @Test
+    public void tiledRunMatchesWholeImageWithHaloLargerThanTiles() throws Exception {
+        assertTiledMatchesWholeImage(24, 32);
+    }
+}
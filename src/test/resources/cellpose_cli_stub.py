@@ -0,0 +1,52 @@
+"""
+Stub of the Cellpose command line (python -m cellpose), without Cellpose:
+for every 8-bit single-plane TIFF of --dir, writes <name>_cp_masks.tif labelling every non-zero pixel as 1
+"""
+
+import os
+import sys
+import struct
+import argparse
+
+
+def read_tiff(path):
+    with open(path, "rb") as f:
+        data = f.read()
+    order = "<" if data[:2] == b"II" else ">"
+    ifd = struct.unpack(order + "I", data[4:8])[0]
+    nb = struct.unpack(order + "H", data[ifd:ifd + 2])[0]
+    tags = {}
+    for i in range(nb):
+        entry = data[ifd + 2 + 12*i:ifd + 14 + 12*i]
+        tag, kind = struct.unpack(order + "HH", entry[:4])
+        tags[tag] = struct.unpack(order + "H", entry[8:10])[0] if kind == 3 else struct.unpack(order + "I", entry[8:12])[0]
+    width, height, offset = tags[256], tags[257], tags[273]
+    return width, height, data[offset:offset + width*height]
+
+
+def write_tiff(path, width, height, pixels):
+    entries = [(256, 4, width), (257, 4, height), (258, 3, 8), (259, 3, 1), (262, 3, 1),
+               (273, 4, 8 + 2 + 12*9 + 4), (277, 3, 1), (278, 4, height), (279, 4, width*height)]
+    out = b"II*\x00" + struct.pack("<I", 8) + struct.pack("<H", len(entries))
+    for tag, kind, value in entries:
+        out += struct.pack("<HHI", tag, kind, 1) + (struct.pack("<HH", value, 0) if kind == 3 else struct.pack("<I", value))
+    out += struct.pack("<I", 0) + pixels
+    with open(path, "wb") as f:
+        f.write(out)
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument("--dir")
+    args, _ = parser.parse_known_args()
+    for name in sorted(os.listdir(args.dir)):
+        if not name.endswith(".tif") or name.endswith("_cp_masks.tif"):
+            continue
+        width, height, pixels = read_tiff(os.path.join(args.dir, name))
+        labels = bytes(1 if v else 0 for v in pixels)
+        write_tiff(os.path.join(args.dir, name[:-4] + "_cp_masks.tif"), width, height, labels)
+    print("stub command line done")
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,71 @@
+"""
+Stub of the Cellpose worker speaking the same JSON-line protocol, without Cellpose:
+segment_raw labels every non-zero voxel as 1
+--model fail exits before ready, --model hang never answers
+a request with diameter -1 gets an error reply, diameter 999 kills the worker without reply,
+diameter 998 never gets a reply
+"""
+
+import sys
+import json
+import time
+import argparse
+from array import array
+
+MARKER = "@@cellpose-worker@@"
+
+
+def reply(msg):
+    sys.stdout.write(MARKER + " " + json.dumps(msg) + "\n")
+    sys.stdout.flush()
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument("--model", default="cyto2")
+    parser.add_argument("--gpu", action="store_true")
+    args = parser.parse_args()
+    if args.model == "fail":
+        sys.exit(1)
+    if args.model == "hang":
+        time.sleep(3600)
+    print("stub worker loaded")
+    reply({"status": "ready"})
+
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        req = json.loads(line)
+        if req["cmd"] == "quit":
+            reply({"status": "bye"})
+            break
+        if req.get("diameter") == 999:
+            sys.exit(3)
+        if req.get("diameter") == 998:
+            time.sleep(3600)
+        if req.get("diameter") == -1:
+            reply({"status": "error", "message": "bad diameter"})
+            continue
+        if req["cmd"] != "segment_raw":
+            reply({"status": "error", "message": "unsupported command " + req["cmd"]})
+            continue
+        with open(req["input"], "rb") as f:
+            data = f.read()
+        if req["dtype"] == "uint8":
+            values = list(data)
+        else:
+            values = array("H")
+            values.frombytes(data[:2*req["shape"][0]*req["shape"][1]*req["shape"][2]])
+            if sys.byteorder == "big":
+                values.byteswap()
+        labels = array("H", [1 if v else 0 for v in values])
+        if sys.byteorder == "big":
+            labels.byteswap()
+        with open(req["output"], "r+b") as f:
+            f.write(labels.tobytes())
+        reply({"status": "ok"})
+
+
+if __name__ == "__main__":
+    main()